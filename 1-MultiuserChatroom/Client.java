@@ -4,6 +4,8 @@
  */
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
 
 /**
  * This class represents the client that will connect to the server.
@@ -14,6 +16,21 @@ public class Client {
      */
 	private boolean isConnected;
 	
+	/*
+     * The part of the line which asks the client to acknowledge a page of offline messages.
+     */
+	private final String OFFLINE_ACK_PROMPT = " Acknowledge with \"";
+	
+	/*
+     * Data output stream to the server.
+     */
+	private DataOutputStream toServer;
+	
+	/*
+     * The deflater of the session, or null if the session is not compressed.
+     */
+	private Deflater deflater;
+	
 	public static void main(String[] args) {
 		new Client(args);
 	}
@@ -21,20 +38,37 @@ public class Client {
 	public Client(String[] args) {
 		String serverIpAddress = args[0];
 		int serverPort = Integer.parseInt(args[1]);
+		boolean isCompressed = (args.length > 2 && args[2].equals("compress"));
 		
 		try {
 			System.out.println("This is the client program. If you want to exit, please input \"Ctrl + C\".");
 			
-			Socket clientSocket = new Socket(serverIpAddress, serverPort);				
-			BufferedReader fromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+			Socket clientSocket = new Socket(serverIpAddress, serverPort);
+			InputStream in = clientSocket.getInputStream();
+			
+			toServer = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+			
+			//Ask the server to compress the session before logging in.
+			if (isCompressed) {
+				negotiateCompression(in);
+			}
+			
+			BufferedReader fromServer = null;
+			
+			if (deflater == null) {
+				fromServer = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			}
+			else {
+				fromServer = new BufferedReader(new InputStreamReader(
+						new Compression.InflatingInputStream(in, Compression.takeInflater()), StandardCharsets.UTF_8));
+			}
 			
 			isConnected = true;
 			
 			while (true) {
 				String messageFromServer = "";				
-				SendMessageThread sendMessage = new SendMessageThread(clientSocket);			
+				SendMessageThread sendMessage = new SendMessageThread();			
 				BufferedReader fromUser = new BufferedReader(new InputStreamReader(System.in));				
-				DataOutputStream toServer = new DataOutputStream(clientSocket.getOutputStream());
 				
 				while (true) {
 					messageFromServer = fromServer.readLine();
@@ -42,7 +76,7 @@ public class Client {
 					//The server prompts the client to input his username and password before log in.
 					if (messageFromServer.equals("Username: ") || messageFromServer.equals("Password: ") ) {
 						System.out.print(messageFromServer);
-						toServer.writeBytes(fromUser.readLine() + '\n');
+						send(fromUser.readLine());
 						break;
 					}
 					//The server informs the client he is going to log out.
@@ -57,6 +91,14 @@ public class Client {
 						//Create a new thread in order to let the client input his command.
 						new Thread(sendMessage).start();
 					}
+					//The server asks the client to acknowledge a page of offline messages,
+					//so that it sends the next page.
+					else if (messageFromServer.startsWith("Offline messages ") && messageFromServer.contains(OFFLINE_ACK_PROMPT)) {
+						int i = messageFromServer.indexOf(OFFLINE_ACK_PROMPT);
+						
+						System.out.println(messageFromServer.substring(0, i));
+						send(messageFromServer.substring(i + OFFLINE_ACK_PROMPT.length(), messageFromServer.lastIndexOf('"')));
+					}
 					//Receive usual message from the server.
 					else {
 						System.out.println(messageFromServer);
@@ -77,24 +119,70 @@ public class Client {
 	}
 	
 	/**
-	 * This class implements the thread which is used for sending message to the server.
-	 */
-	class SendMessageThread implements Runnable {
-		private Socket clientSocket;
+     * This method asks the server to compress the session. The lines before the
+     * server's answer are not compressed, so they are read one byte at a time in
+     * order not to read any compressed byte. If the server does not support
+     * compression, the session continues without it.
+     */
+	private void negotiateCompression(InputStream in) throws IOException {
+		send(Compression.REQUEST);
 		
-		public SendMessageThread(Socket clientSocket) {
-			this.clientSocket = clientSocket;
+		while (true) {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			
+			while ((b = in.read()) != '\n') {
+				if (b == -1) {
+					throw new EOFException();
+				}
+				
+				line.write(b);
+			}
+			
+			String messageFromServer = line.toString("UTF-8");
+			
+			if (messageFromServer.equals(Compression.ACCEPTED)) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				break;
+			}
+			//The server took the request for a username.
+			else if (messageFromServer.startsWith("The username you entered does not exist")) {
+				System.out.println("The server does not support compression.");
+				break;
+			}
+			//The server prompts for the username again after its answer.
+			else if (!messageFromServer.equals("Username: ")) {
+				System.out.println(messageFromServer);
+			}
+		}
+	}
+	
+	/**
+     * This method sends a line to the server, compressing it if the session is compressed.
+     */
+	private synchronized void send(String message) throws IOException {
+		if (deflater == null) {
+			toServer.write((message + '\n').getBytes(StandardCharsets.UTF_8));
+		}
+		else {
+			Compression.compress(deflater, (message + '\n').getBytes(StandardCharsets.UTF_8), toServer);
 		}
 		
+		toServer.flush();
+	}
+	
+	/**
+	 * This class implements the thread which is used for sending message to the server.
+	 */
+	class SendMessageThread implements Runnable {
 		@Override
 		public void run() {			
 			try {
 				BufferedReader fromUser = new BufferedReader(new InputStreamReader(System.in));
-				DataOutputStream toServer = new DataOutputStream(clientSocket.getOutputStream());
 				
 				while (true) {
 					//Let the client input his command. 
-					toServer.writeBytes(fromUser.readLine() + '\n');					
+					send(fromUser.readLine());					
 				}			
 			}
 			catch (Exception e) {
@@ -0,0 +1,251 @@
+/*
+ * This application realizes a simple chat room. It contains two programs:
+ * a server program (Server.java), a client program (Client.java).
+ */
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class implements the optional DEFLATE compression of a chat session. Each
+ * message is compressed with a sync flush, so that the peer can display it as soon
+ * as it arrives. Deflaters, inflaters and buffers are pooled and reused.
+ */
+public class Compression {
+	/*
+     * The line which the client sends to ask for a compressed session.
+     */
+	public static final String REQUEST = "compress deflate";
+
+	/*
+     * The line which the server sends before it starts to compress the session.
+     */
+	public static final String ACCEPTED = "Compression enabled.";
+
+	/*
+     * Size of the pooled buffers.
+     */
+	private static final int BUFFER_SIZE = 8192;
+
+	/*
+     * Deflaters which are not used by any session.
+     */
+	private static ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/*
+     * Inflaters which are not used by any session.
+     */
+	private static ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	/*
+     * Buffers which are not used by any session.
+     */
+	private static ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+     * This method takes a raw deflater (without zlib header) from the pool.
+     */
+	public static Deflater takeDeflater() {
+		Deflater deflater = deflaters.poll();
+
+		return (deflater != null) ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	/**
+     * This method resets a deflater and returns it to the pool.
+     */
+	public static void giveBack(Deflater deflater) {
+		deflater.reset();
+		deflaters.offer(deflater);
+	}
+
+	/**
+     * This method takes a raw inflater (without zlib header) from the pool.
+     */
+	public static Inflater takeInflater() {
+		Inflater inflater = inflaters.poll();
+
+		return (inflater != null) ? inflater : new Inflater(true);
+	}
+
+	/**
+     * This method resets an inflater and returns it to the pool.
+     */
+	public static void giveBack(Inflater inflater) {
+		inflater.reset();
+		inflaters.offer(inflater);
+	}
+
+	/**
+     * This method takes a buffer from the pool.
+     */
+	public static byte[] takeBuffer() {
+		byte[] buffer = buffers.poll();
+
+		return (buffer != null) ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	/**
+     * This method returns a buffer to the pool.
+     */
+	public static void giveBack(byte[] buffer) {
+		buffers.offer(buffer);
+	}
+
+	/**
+     * This method compresses a message with a sync flush and writes it to the
+     * output stream. It returns the number of compressed bytes.
+     */
+	public static int compress(Deflater deflater, byte[] message, OutputStream out) throws IOException {
+		byte[] buffer = takeBuffer();
+		int length = 0;
+
+		try {
+			deflater.setInput(message);
+
+			//The output is complete once the deflater does not fill the whole buffer.
+			while (true) {
+				int n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+
+				out.write(buffer, 0, n);
+				length += n;
+
+				if (n < buffer.length) {
+					break;
+				}
+			}
+		}
+		finally {
+			giveBack(buffer);
+		}
+
+		return length;
+	}
+
+	/**
+	 * This class implements the input stream which decompresses a session. Unlike
+	 * InflaterInputStream, it only reports bytes as available when they can be
+	 * read without blocking, so a reader never waits for the next message.
+	 */
+	public static class InflatingInputStream extends FilterInputStream {
+		/*
+	     * The inflater of the session.
+	     */
+		private Inflater inflater;
+
+		/*
+	     * The buffer of compressed bytes.
+	     */
+		private byte[] buffer = takeBuffer();
+
+		/*
+	     * The buffer of bytes which were decompressed ahead by available().
+	     */
+		private byte[] pending = takeBuffer();
+
+		/*
+	     * Position of the next pending byte.
+	     */
+		private int pendingPos;
+
+		/*
+	     * Number of pending bytes.
+	     */
+		private int pendingLength;
+
+		/*
+	     * A buffer used by the single-byte read.
+	     */
+		private byte[] oneByte = new byte[1];
+
+		public InflatingInputStream(InputStream in, Inflater inflater) {
+			super(in);
+			this.inflater = inflater;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return (read(oneByte, 0, 1) == -1) ? -1 : (oneByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			//Return the bytes decompressed by available() first.
+			if (pendingPos < pendingLength) {
+				int n = Math.min(len, pendingLength - pendingPos);
+
+				System.arraycopy(pending, pendingPos, b, off, n);
+				pendingPos += n;
+
+				return n;
+			}
+
+			try {
+				while (true) {
+					int n = inflater.inflate(b, off, len);
+
+					if (n > 0 || len == 0) {
+						return n;
+					}
+
+					if (inflater.finished()) {
+						return -1;
+					}
+
+					//Read more compressed bytes from the connection.
+					int m = in.read(buffer, 0, buffer.length);
+
+					if (m == -1) {
+						return -1;
+					}
+
+					inflater.setInput(buffer, 0, m);
+				}
+			}
+			catch (DataFormatException e) {
+				throw new IOException("Error: the compressed stream is corrupted.");
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (pendingPos < pendingLength) {
+				return pendingLength - pendingPos;
+			}
+
+			//Compressed bytes left in the inflater may not hold any data (e.g. only
+			//the end of a flush), so decompress them ahead to find out.
+			if (inflater.getRemaining() > 0) {
+				try {
+					pendingPos = 0;
+					pendingLength = inflater.inflate(pending, 0, pending.length);
+				}
+				catch (DataFormatException e) {
+					throw new IOException("Error: the compressed stream is corrupted.");
+				}
+
+				if (pendingLength > 0) {
+					return pendingLength;
+				}
+			}
+
+			return (in.available() > 0) ? 1 : 0;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+
+			giveBack(buffer);
+			giveBack(pending);
+			giveBack(inflater);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * This application realizes a simple chat room. It contains two programs:
+ * a server program (Server.java), a client program (Client.java).
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class implements the decoder which splits the bytes from a client into
+ * lines. The bytes are kept in a reusable buffer, and a line is only decoded
+ * from UTF-8 when a String is actually needed. A line longer than the maximum
+ * line length is rejected, so a client cannot make the buffer grow.
+ */
+public class LineDecoder {
+	/*
+     * Eight newline bytes, used to find a newline in eight bytes at once.
+     */
+	private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+
+	/*
+     * The seven lowest bits of each of eight bytes.
+     */
+	private static final long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+	/*
+     * The input stream from the client.
+     */
+	private InputStream in;
+
+	/*
+     * Maximum number of bytes in a line, excluding the line terminator.
+     */
+	private int maxLineLength;
+
+	/*
+     * The buffer of bytes from the client.
+     */
+	private byte[] buffer;
+
+	/*
+     * The buffer viewed as 64-bit words.
+     */
+	private ByteBuffer words;
+
+	/*
+     * Position of the first byte which has not been returned as a line yet.
+     */
+	private int start;
+
+	/*
+     * Position after the last byte read from the client.
+     */
+	private int end;
+
+	/*
+     * Position from which the newline is searched, since the bytes before it
+     * contain no newline.
+     */
+	private int scanPos;
+
+	/*
+     * Position of the first byte of the current line.
+     */
+	private int lineStart;
+
+	/*
+     * Position after the last byte of the current line, excluding the line terminator.
+     */
+	private int lineEnd;
+
+	public LineDecoder(InputStream in, int maxLineLength) {
+		this.in = in;
+		this.maxLineLength = maxLineLength;
+
+		//Leave room for the longest line, its terminator "\r\n" and a little more to read ahead.
+		this.buffer = new byte[Math.max(maxLineLength + 2, 8192)];
+		this.words = ByteBuffer.wrap(this.buffer);
+	}
+
+	/**
+     * This method reads the next line, which is terminated by "\n" or "\r\n". It
+     * returns false at the end of the stream, and throws an IOException if the
+     * line is longer than the maximum line length.
+     */
+	public boolean readLine() throws IOException {
+		while (true) {
+			int newline = findNewline(scanPos, end);
+
+			if (newline != -1) {
+				lineStart = start;
+				lineEnd = (newline > start && buffer[newline - 1] == '\r') ? newline - 1 : newline;
+				start = newline + 1;
+				scanPos = start;
+
+				if (lineEnd - lineStart > maxLineLength) {
+					throw new IOException("Error: the line is longer than " + maxLineLength + " bytes.");
+				}
+
+				return true;
+			}
+
+			scanPos = end;
+
+			//The line cannot be terminated within the maximum line length.
+			if (end - start > maxLineLength + 1) {
+				throw new IOException("Error: the line is longer than " + maxLineLength + " bytes.");
+			}
+
+			//Move the unfinished line to the beginning of the buffer.
+			if (end == buffer.length) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				scanPos -= start;
+				start = 0;
+			}
+
+			int n = in.read(buffer, end, buffer.length - end);
+
+			if (n == -1) {
+				return false;
+			}
+
+			end += n;
+		}
+	}
+
+	/**
+     * This method returns the position of the first newline in the buffer between
+     * from and to, or -1. Eight bytes are tested at once: a byte of the word is a
+     * newline if it becomes zero after an XOR with the newline. The high bit of a
+     * byte of the mask is set only if the byte is zero, since adding 0x7f to its low
+     * seven bits never carries into the next byte, so a byte before a newline is
+     * never taken for one.
+     */
+	private int findNewline(int from, int to) {
+		int i = from;
+
+		for (; i + 8 <= to; i += 8) {
+			long word = words.getLong(i) ^ NEWLINES;
+			long zeros = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+
+			if (zeros != 0) {
+				//The buffer is big-endian, so the first byte is the most significant one.
+				return i + (Long.numberOfLeadingZeros(zeros) >>> 3);
+			}
+		}
+
+		for (; i < to; i++) {
+			if (buffer[i] == '\n') {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+     * This method returns the number of bytes in the current line.
+     */
+	public int length() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+     * This method returns the position of the first space in the current line at
+     * or after the given position, or the length of the line if there is none.
+     */
+	public int tokenEnd(int from) {
+		for (int i = lineStart + from; i < lineEnd; i++) {
+			if (buffer[i] == ' ') {
+				return i - lineStart;
+			}
+		}
+
+		return length();
+	}
+
+	/**
+     * This method checks whether the first token of the current line, which ends
+     * at the first space, equals the given ASCII token.
+     */
+	public boolean isFirstToken(byte[] token) {
+		if (tokenEnd(0) != token.length) {
+			return false;
+		}
+
+		for (int i = 0; i < token.length; i++) {
+			if (buffer[lineStart + i] != token[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+     * This method decodes a part of the current line from UTF-8.
+     */
+	public String decode(int from, int to) {
+		return new String(buffer, lineStart + from, to - from, StandardCharsets.UTF_8);
+	}
+
+	/**
+     * This method decodes the whole current line from UTF-8.
+     */
+	public String decode() {
+		return decode(0, length());
+	}
+
+	/**
+     * This method replaces the input stream, e.g. when the session starts to be
+     * compressed. The bytes which are already buffered are still returned first,
+     * so the stream must be replaced at a point where the client waits for an answer.
+     */
+	public void setInput(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+     * This method closes the input stream.
+     */
+	public void close() throws IOException {
+		in.close();
+	}
+}
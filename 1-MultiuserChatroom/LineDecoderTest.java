@@ -0,0 +1,101 @@
+/*
+ * This application realizes a simple chat room. It contains two programs:
+ * a server program (Server.java), a client program (Client.java).
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class checks that the line decoder splits bytes into the same lines as a
+ * plain byte-by-byte scan. It is run with "java LineDecoderTest", and exits with
+ * status 1 if a check fails.
+ */
+public class LineDecoderTest {
+	/*
+     * The number of failed checks.
+     */
+	private static int failures;
+
+	public static void main(String[] args) throws IOException {
+		//A vertical tab (0x0b) is one less than a newline, so it must not be taken
+		//for one, in any position of the 64-bit word.
+		for (int pad = 0; pad < 8; pad++) {
+			String prefix = "abcdefgh".substring(0, pad);
+
+			check(bytes(prefix + "abc\u000b\n xyz\n"), prefix + "abc\u000b", " xyz");
+		}
+
+		check(bytes("\u000b\u000b\u000b\u000b\u000b\u000b\u000b\n\u000b\n"), "\u000b\u000b\u000b\u000b\u000b\u000b\u000b", "\u000b");
+		check(bytes("one\r\ntwo\n\nthree"), "one", "two", "");
+
+		//Random bytes near the newline, and a few others, against a plain scan.
+		Random random = new Random(1);
+		byte[] alphabet = {0x00, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x20, 0x61, 0x7f, (byte)0x80, (byte)0x8a, (byte)0xff};
+
+		for (int n = 0; n < 10000; n++) {
+			byte[] input = new byte[random.nextInt(64)];
+
+			for (int i = 0; i < input.length; i++) {
+				input[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+
+			check(input, expectedLines(input));
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+
+		System.out.println("All checks passed");
+	}
+
+	/**
+     * This method returns the bytes of an ASCII string.
+     */
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+     * This method splits the input into lines with a plain scan, as the decoder
+     * should: each line ends with "\n" or "\r\n", and an unterminated tail is not
+     * a line.
+     */
+	private static String[] expectedLines(byte[] input) {
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+
+		for (int i = 0; i < input.length; i++) {
+			if (input[i] == '\n') {
+				int end = (i > start && input[i - 1] == '\r') ? i - 1 : i;
+
+				lines.add(new String(input, start, end - start, StandardCharsets.UTF_8));
+				start = i + 1;
+			}
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+     * This method decodes the input, and compares its lines with the expected ones.
+     */
+	private static void check(byte[] input, String... expected) throws IOException {
+		LineDecoder decoder = new LineDecoder(new ByteArrayInputStream(input), 1024);
+		List<String> lines = new ArrayList<String>();
+
+		while (decoder.readLine()) {
+			lines.add(decoder.decode());
+		}
+
+		if (!lines.equals(Arrays.asList(expected))) {
+			failures++;
+			System.out.println("Failed: " + Arrays.toString(input) + " gave " + lines + " instead of " + Arrays.asList(expected));
+		}
+	}
+}
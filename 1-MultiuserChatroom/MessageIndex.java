@@ -0,0 +1,751 @@
+/*
+ * This application realizes a simple chat room. It contains two programs:
+ * a server program (Server.java), a client program (Client.java).
+ */
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class implements the full-text index of the chat messages, which is used by
+ * the command "search". Messages are queued by the clients' threads and indexed by
+ * a background thread. The index is split into segments which cover consecutive
+ * periods of time. The newest segment is still growing; older segments are sealed,
+ * and their posting lists are compressed into byte arrays. Small adjacent segments
+ * are merged, and the oldest segments are evicted when the index exceeds its
+ * memory budget.
+ */
+public class MessageIndex implements Runnable {
+	/*
+     * Maximum number of messages in the growing segment.
+     */
+	private static final int SEGMENT_DOCS = 4096;
+
+	/*
+     * Maximum number of messages in a merged segment.
+     */
+	private static final int MERGE_DOCS = 65536;
+
+	/*
+     * BM25 parameters: term frequency saturation and length normalization.
+     */
+	private static final double K1 = 1.2;
+
+	private static final double B = 0.75;
+
+	/*
+     * Number of milliseconds covered by a segment.
+     */
+	private long segmentDuration;
+
+	/*
+     * Maximum number of bytes used by the index (estimated).
+     */
+	private long memoryBudget;
+
+	/*
+     * Messages which are waiting to be indexed.
+     */
+	private LinkedBlockingQueue<Doc> queue = new LinkedBlockingQueue<Doc>();
+
+	/*
+     * Lock which lets searches run together, but not while messages are indexed.
+     */
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/*
+     * Sealed segments, from the oldest to the newest.
+     */
+	private ArrayList<Segment> segments = new ArrayList<Segment>();
+
+	/*
+     * The segment to which new messages are added.
+     */
+	private Segment active = new Segment();
+
+	/*
+     * Number of messages and of words in all segments.
+     */
+	private long totalDocs;
+
+	private long totalLength;
+
+	/*
+     * Number of bytes used by all segments (estimated).
+     */
+	private long totalBytes;
+
+	/*
+     * Number of segments which have been evicted.
+     */
+	private int evictedSegments;
+
+	public MessageIndex(int segmentMinutes, long memoryBudget) {
+		this.segmentDuration = segmentMinutes * 60000L;
+		this.memoryBudget = memoryBudget;
+
+		Thread indexer = new Thread(this);
+
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	/**
+     * This method queues a message to be indexed. The recipients are null if the
+     * message was broadcast to all users, who may all find it.
+     */
+	public void add(String sender, String[] recipients, String message) {
+		queue.offer(new Doc(System.currentTimeMillis(), sender, recipients, message));
+	}
+
+	/**
+     * This method indexes the queued messages in batches.
+     */
+	@Override
+	public void run() {
+		ArrayList<Doc> batch = new ArrayList<Doc>();
+
+		while (true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+
+				lock.writeLock().lock();
+
+				try {
+					for (Doc doc: batch) {
+						index(doc);
+					}
+
+					evict();
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+
+				batch.clear();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+     * This method adds a message to the growing segment, which is sealed first if
+     * it is full or too old.
+     */
+	private void index(Doc doc) {
+		if (active.size > 0 && (active.size == SEGMENT_DOCS || doc.time - active.startTime >= segmentDuration)) {
+			long bytesBefore = active.bytes;
+
+			active.seal();
+			totalBytes += active.bytes - bytesBefore;
+
+			segments.add(active);
+			active = new Segment();
+
+			merge();
+		}
+
+		long bytesBefore = active.bytes;
+
+		active.add(doc, tokenize(doc.text));
+
+		totalDocs++;
+		totalLength += active.lengths[active.size - 1];
+		totalBytes += active.bytes - bytesBefore;
+	}
+
+	/**
+     * This method merges adjacent sealed segments of similar size, starting from
+     * the oldest ones, so that old messages end up in a few large segments.
+     */
+	private void merge() {
+		int i = 0;
+
+		while (i + 1 < segments.size()) {
+			Segment older = segments.get(i);
+			Segment newer = segments.get(i + 1);
+
+			if (older.size + newer.size <= MERGE_DOCS && older.size <= 2 * newer.size) {
+				Segment merged = Segment.merge(older, newer);
+
+				totalBytes += merged.bytes - older.bytes - newer.bytes;
+
+				segments.set(i, merged);
+				segments.remove(i + 1);
+
+				//The merged segment may now be merged with the one before it.
+				i = Math.max(i - 1, 0);
+			}
+			else {
+				i++;
+			}
+		}
+	}
+
+	/**
+     * This method evicts the oldest sealed segments while the index exceeds its memory budget.
+     */
+	private void evict() {
+		while (totalBytes > memoryBudget && !segments.isEmpty()) {
+			Segment oldest = segments.remove(0);
+
+			totalDocs -= oldest.size;
+			totalBytes -= oldest.bytes;
+
+			for (int i = 0; i < oldest.size; i++) {
+				totalLength -= oldest.lengths[i];
+			}
+
+			evictedSegments++;
+		}
+	}
+
+	/**
+     * This method searches the messages which the user may see (those he sent,
+     * received, or which were broadcast to all users), and returns the best hits
+     * ranked by BM25, the newest first when they score the same.
+     */
+	public List<String> search(String user, String query, int maxHits) {
+		String[] terms = tokenize(query);
+		PriorityQueue<Hit> best = new PriorityQueue<Hit>();
+
+		lock.readLock().lock();
+
+		try {
+			if (totalDocs == 0 || terms.length == 0) {
+				return new ArrayList<String>();
+			}
+
+			double averageLength = (double)totalLength / totalDocs;
+			ArrayList<Segment> all = new ArrayList<Segment>(segments);
+
+			all.add(active);
+
+			//The inverse document frequency of each term over all segments.
+			double[] idf = new double[terms.length];
+
+			for (int t = 0; t < terms.length; t++) {
+				long df = 0;
+
+				for (Segment segment: all) {
+					df += segment.documentFrequency(terms[t]);
+				}
+
+				idf[t] = Math.log(1 + (totalDocs - df + 0.5) / (df + 0.5));
+			}
+
+			for (Segment segment: all) {
+				float[] scores = null;
+
+				for (int t = 0; t < terms.length; t++) {
+					Postings postings = segment.postings(terms[t]);
+
+					if (postings == null) {
+						continue;
+					}
+
+					if (scores == null) {
+						scores = new float[segment.size];
+					}
+
+					for (int i = 0; i < postings.size; i++) {
+						int doc = postings.docs[i];
+						int tf = postings.freqs[i];
+						double norm = K1 * (1 - B + B * segment.lengths[doc] / averageLength);
+
+						scores[doc] += (float)(idf[t] * tf * (K1 + 1) / (tf + norm));
+					}
+				}
+
+				if (scores == null) {
+					continue;
+				}
+
+				for (int doc = 0; doc < segment.size; doc++) {
+					if (scores[doc] > 0 && segment.isVisible(doc, user)) {
+						best.offer(new Hit(scores[doc], segment.times[doc], segment.texts[doc]));
+
+						if (best.size() > maxHits) {
+							best.poll();
+						}
+					}
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		ArrayList<Hit> hits = new ArrayList<Hit>(best);
+		ArrayList<String> results = new ArrayList<String>();
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+		Collections.sort(hits, Collections.reverseOrder());
+
+		for (Hit hit: hits) {
+			results.add("[" + sdf.format(new Date(hit.time)) + "] " + hit.text);
+		}
+
+		return results;
+	}
+
+	/**
+     * This method returns the statistics of the index.
+     */
+	public String getStatistics() {
+		lock.readLock().lock();
+
+		try {
+			return totalDocs + " messages in " + (segments.size() + 1) + " segments, about " + totalBytes / 1024 +
+				   " KB, " + evictedSegments + " segments evicted";
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+     * This method splits a text into lower-case words made of letters and digits.
+     */
+	private static String[] tokenize(String text) {
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+
+		for (int i = 0; i <= text.length(); i++) {
+			boolean isWordChar = (i < text.length() && Character.isLetterOrDigit(text.charAt(i)));
+
+			if (isWordChar && start == -1) {
+				start = i;
+			}
+			else if (!isWordChar && start != -1) {
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+
+		return words.toArray(new String[words.size()]);
+	}
+
+	/**
+     * This method returns the number of bytes of a non-negative integer written
+     * as a varint: 7 bits per byte, the highest bit being set on all bytes but the last.
+     */
+	private static int varintLength(int value) {
+		int length = 1;
+
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			length++;
+		}
+
+		return length;
+	}
+
+	/**
+     * This method writes a non-negative integer as a varint at the given position,
+     * and returns the position after it.
+     */
+	private static int writeVarint(byte[] data, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			data[pos++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		data[pos++] = (byte)value;
+
+		return pos;
+	}
+
+	/**
+	 * This class represents a message to be indexed.
+	 */
+	static class Doc {
+		/*
+	     * Time when the message was sent.
+	     */
+		long time;
+
+		/*
+	     * The user who sent the message.
+	     */
+		String sender;
+
+		/*
+	     * The users who received the message, or null if it was broadcast to all users.
+	     */
+		String[] recipients;
+
+		/*
+	     * The message as displayed to its recipients.
+	     */
+		String text;
+
+		public Doc(long time, String sender, String[] recipients, String text) {
+			this.time = time;
+			this.sender = sender;
+			this.recipients = recipients;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * This class represents the posting list of a term: the messages which contain
+	 * the term in increasing order, and the number of times they contain it.
+	 */
+	static class Postings {
+		/*
+	     * The messages which contain the term, as indexes in the segment.
+	     */
+		int[] docs = new int[4];
+
+		/*
+	     * Number of times each message contains the term.
+	     */
+		int[] freqs = new int[4];
+
+		/*
+	     * Number of messages in the posting list.
+	     */
+		int size;
+
+		/**
+	     * This method adds an occurrence of the term in a message. Messages are
+	     * added in increasing order.
+	     */
+		void add(int doc) {
+			if (size > 0 && docs[size - 1] == doc) {
+				freqs[size - 1]++;
+				return;
+			}
+
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+				freqs = Arrays.copyOf(freqs, size * 2);
+			}
+
+			docs[size] = doc;
+			freqs[size] = 1;
+			size++;
+		}
+
+		/**
+	     * This method compresses the posting list: the number of messages, then
+	     * for each message the difference with the previous one and the frequency,
+	     * all as varints.
+	     */
+		byte[] encode() {
+			int length = varintLength(size);
+
+			for (int i = 0; i < size; i++) {
+				length += varintLength(docs[i] - ((i == 0) ? 0 : docs[i - 1])) + varintLength(freqs[i]);
+			}
+
+			byte[] data = new byte[length];
+			int pos = writeVarint(data, 0, size);
+
+			for (int i = 0; i < size; i++) {
+				pos = writeVarint(data, pos, docs[i] - ((i == 0) ? 0 : docs[i - 1]));
+				pos = writeVarint(data, pos, freqs[i]);
+			}
+
+			return data;
+		}
+
+		/**
+	     * This method decompresses a posting list, shifting the messages by an offset.
+	     */
+		static Postings decode(byte[] data, int offset) {
+			Postings postings = new Postings();
+			int[] pos = new int[1];
+			int n = readVarint(data, pos);
+			int doc = offset;
+
+			postings.docs = new int[Math.max(n, 1)];
+			postings.freqs = new int[Math.max(n, 1)];
+
+			for (int i = 0; i < n; i++) {
+				doc += readVarint(data, pos);
+
+				postings.docs[i] = doc;
+				postings.freqs[i] = readVarint(data, pos);
+			}
+
+			postings.size = n;
+
+			return postings;
+		}
+
+		/**
+	     * This method reads a varint at the given position and advances the position.
+	     */
+		static int readVarint(byte[] data, int[] pos) {
+			int value = 0;
+
+			for (int shift = 0; ; shift += 7) {
+				byte b = data[pos[0]++];
+
+				value |= (b & 0x7f) << shift;
+
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * This class represents a segment of the index, which holds the messages of a
+	 * period of time and their posting lists.
+	 */
+	static class Segment {
+		/*
+	     * Time of the first message of the segment.
+	     */
+		long startTime;
+
+		/*
+	     * The messages of the segment: their text, time, sender, recipients and
+	     * number of words.
+	     */
+		String[] texts = new String[16];
+
+		long[] times = new long[16];
+
+		String[] senders = new String[16];
+
+		String[][] recipients = new String[16][];
+
+		int[] lengths = new int[16];
+
+		/*
+	     * Number of messages in the segment.
+	     */
+		int size;
+
+		/*
+	     * The posting lists while the segment is growing.
+	     */
+		HashMap<String, Postings> growing = new HashMap<String, Postings>();
+
+		/*
+	     * The compressed posting lists once the segment is sealed.
+	     */
+		HashMap<String, byte[]> sealed;
+
+		/*
+	     * Number of bytes used by the segment (estimated).
+	     */
+		long bytes;
+
+		/**
+	     * This method adds a message and its words to the segment.
+	     */
+		void add(Doc doc, String[] words) {
+			if (size == texts.length) {
+				int capacity = size * 2;
+
+				texts = Arrays.copyOf(texts, capacity);
+				times = Arrays.copyOf(times, capacity);
+				senders = Arrays.copyOf(senders, capacity);
+				recipients = Arrays.copyOf(recipients, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+			}
+
+			if (size == 0) {
+				startTime = doc.time;
+			}
+
+			texts[size] = doc.text;
+			times[size] = doc.time;
+			senders[size] = doc.sender;
+			recipients[size] = doc.recipients;
+			lengths[size] = words.length;
+
+			bytes += 64 + 2 * doc.text.length() + ((doc.recipients == null) ? 0 : 8 * doc.recipients.length);
+
+			for (String word: words) {
+				Postings postings = growing.get(word);
+
+				if (postings == null) {
+					postings = new Postings();
+					growing.put(word, postings);
+
+					bytes += 96 + 2 * word.length();
+				}
+
+				int before = postings.docs.length;
+
+				postings.add(size);
+
+				bytes += 8 * (postings.docs.length - before);
+			}
+
+			size++;
+		}
+
+		/**
+	     * This method compresses the posting lists of the segment, which no longer grows.
+	     */
+		void seal() {
+			sealed = new HashMap<String, byte[]>();
+			bytes = 0;
+
+			for (int i = 0; i < size; i++) {
+				bytes += 64 + 2 * texts[i].length() + ((recipients[i] == null) ? 0 : 8 * recipients[i].length);
+			}
+
+			for (Map.Entry<String, Postings> entry: growing.entrySet()) {
+				byte[] data = entry.getValue().encode();
+
+				sealed.put(entry.getKey(), data);
+				bytes += 64 + 2 * entry.getKey().length() + data.length;
+			}
+
+			growing = null;
+		}
+
+		/**
+	     * This method merges two sealed segments, the older one first.
+	     */
+		static Segment merge(Segment older, Segment newer) {
+			Segment merged = new Segment();
+			int capacity = older.size + newer.size;
+
+			merged.startTime = older.startTime;
+			merged.texts = Arrays.copyOf(older.texts, capacity);
+			merged.times = Arrays.copyOf(older.times, capacity);
+			merged.senders = Arrays.copyOf(older.senders, capacity);
+			merged.recipients = Arrays.copyOf(older.recipients, capacity);
+			merged.lengths = Arrays.copyOf(older.lengths, capacity);
+
+			System.arraycopy(newer.texts, 0, merged.texts, older.size, newer.size);
+			System.arraycopy(newer.times, 0, merged.times, older.size, newer.size);
+			System.arraycopy(newer.senders, 0, merged.senders, older.size, newer.size);
+			System.arraycopy(newer.recipients, 0, merged.recipients, older.size, newer.size);
+			System.arraycopy(newer.lengths, 0, merged.lengths, older.size, newer.size);
+
+			merged.size = capacity;
+			merged.growing = new HashMap<String, Postings>();
+
+			//Concatenate the posting lists, the messages of the newer segment coming after the older ones.
+			for (Map.Entry<String, byte[]> entry: older.sealed.entrySet()) {
+				merged.growing.put(entry.getKey(), Postings.decode(entry.getValue(), 0));
+			}
+
+			for (Map.Entry<String, byte[]> entry: newer.sealed.entrySet()) {
+				Postings tail = Postings.decode(entry.getValue(), older.size);
+				Postings head = merged.growing.get(entry.getKey());
+
+				if (head == null) {
+					merged.growing.put(entry.getKey(), tail);
+				}
+				else {
+					head.docs = Arrays.copyOf(head.docs, head.size + tail.size);
+					head.freqs = Arrays.copyOf(head.freqs, head.size + tail.size);
+
+					System.arraycopy(tail.docs, 0, head.docs, head.size, tail.size);
+					System.arraycopy(tail.freqs, 0, head.freqs, head.size, tail.size);
+
+					head.size += tail.size;
+				}
+			}
+
+			merged.seal();
+
+			return merged;
+		}
+
+		/**
+	     * This method returns the number of messages of the segment which contain a term.
+	     */
+		int documentFrequency(String term) {
+			if (growing != null) {
+				Postings postings = growing.get(term);
+
+				return (postings == null) ? 0 : postings.size;
+			}
+
+			byte[] data = sealed.get(term);
+
+			return (data == null) ? 0 : Postings.readVarint(data, new int[1]);
+		}
+
+		/**
+	     * This method returns the posting list of a term, or null if no message
+	     * of the segment contains it.
+	     */
+		Postings postings(String term) {
+			if (growing != null) {
+				return growing.get(term);
+			}
+
+			byte[] data = sealed.get(term);
+
+			return (data == null) ? null : Postings.decode(data, 0);
+		}
+
+		/**
+	     * This method checks whether a user may see a message: he sent or received
+	     * it, or it was broadcast to all users.
+	     */
+		boolean isVisible(int doc, String user) {
+			if (recipients[doc] == null || senders[doc].equals(user)) {
+				return true;
+			}
+
+			for (String recipient: recipients[doc]) {
+				if (recipient.equals(user)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * This class represents a search hit, ordered by score and then by time.
+	 */
+	static class Hit implements Comparable<Hit> {
+		/*
+	     * The BM25 score of the message.
+	     */
+		float score;
+
+		/*
+	     * Time when the message was sent.
+	     */
+		long time;
+
+		/*
+	     * The message as displayed to its recipients.
+	     */
+		String text;
+
+		public Hit(float score, long time, String text) {
+			this.score = score;
+			this.time = time;
+			this.text = text;
+		}
+
+		@Override
+		public int compareTo(Hit hit) {
+			if (score != hit.score) {
+				return (score < hit.score) ? -1 : 1;
+			}
+
+			return (time < hit.time) ? -1 : ((time == hit.time) ? 0 : 1);
+		}
+	}
+}
@@ -15,6 +15,17 @@ import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat; 
 
 /**
@@ -45,6 +56,71 @@ public class Server {
      */
 	private final int LAST_HOUR = 1;
 	
+	/*
+     * Minimum number of recipients for which a broadcast is fanned out in
+     * parallel. Smaller broadcasts are enqueued by the issuing client's thread.
+     */
+	private final int FAN_OUT_THRESHOLD = 512;
+	
+	/*
+     * Number of recipients handled by one fan-out task.
+     */
+	private final int FAN_OUT_CHUNK = 256;
+	
+	/*
+     * Maximum number of bytes in a line from a client. A client which sends a
+     * longer line is disconnected.
+     */
+	private final int MAX_LINE_LENGTH = 4096;
+	
+	/*
+     * Maximum number of offline messages in a page.
+     */
+	private final int OFFLINE_PAGE_SIZE = 100;
+	
+	/*
+     * Maximum number of characters of offline messages in a page. A page holds
+     * at least one message.
+     */
+	private final int OFFLINE_PAGE_CHARS = 16384;
+	
+	/*
+     * Maximum number of messages displayed by command "search".
+     */
+	private final int SEARCH_HITS = 10;
+	
+	/*
+     * Number of minutes of messages covered by a segment of the message index.
+     */
+	private final int INDEX_SEGMENT_MINUTES = 10;
+	
+	/*
+     * Maximum number of bytes used by the message index. When it is exceeded, the
+     * oldest messages are evicted from the index.
+     */
+	private final long INDEX_MEMORY_BUDGET = 64L * 1024 * 1024;
+	
+	/*
+     * The commands, which are matched against the bytes from the client.
+     */
+	private final byte[] WHOELSE = "whoelse".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] WHOLASTHR = "wholasthr".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] WHOLAST = "wholast".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] BROADCAST = "broadcast".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] MESSAGE = "message".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] LOGOUT = "logout".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] OFFLINEACK = "offlineack".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] SEARCH = "search".getBytes(StandardCharsets.US_ASCII);
+	
+	private final byte[] EMPTY = new byte[0];
+	
 	
 	/*
      * Mapping between the username and the password.
@@ -64,7 +140,7 @@ public class Server {
 	/*
      * Mapping between the online user and its thread.
      */
-	private HashMap<String, ClientThread> onlineClients = new HashMap<String, ClientThread>();
+	private ConcurrentHashMap<String, ClientThread> onlineClients = new ConcurrentHashMap<String, ClientThread>();
 	
 	/*
      * Mapping between the offline user and the time when he logged out.
@@ -75,6 +151,44 @@ public class Server {
      * Mapping between the offline user and the offline message he has received.
      */
 	private HashMap<String, ArrayList<String>> offlineMessage = new HashMap<String, ArrayList<String>>();
+	
+	/*
+     * Mapping between the user and the number of his offline messages which have
+     * been delivered and acknowledged. Acknowledged messages are only removed once
+     * all offline messages of the user have been delivered.
+     */
+	private ConcurrentHashMap<String, Integer> offlineCursor = new ConcurrentHashMap<String, Integer>();
+	
+	/*
+     * Pool which enqueues large broadcasts to their recipients in parallel.
+     */
+	private ForkJoinPool fanOutPool = new ForkJoinPool();
+	
+	/*
+     * Pool which writes the queued messages to the clients.
+     */
+	private ExecutorService writerPool = Executors.newCachedThreadPool();
+	
+	/*
+     * Full-text index of the messages, which is used by command "search".
+     */
+	private MessageIndex searchIndex = new MessageIndex(INDEX_SEGMENT_MINUTES, INDEX_MEMORY_BUDGET);
+	
+	/*
+     * Number of bytes written to compressed sessions before compression.
+     */
+	private AtomicLong uncompressedBytes = new AtomicLong();
+	
+	/*
+     * Number of bytes written to compressed sessions after compression.
+     */
+	private AtomicLong compressedBytes = new AtomicLong();
+	
+	/*
+     * Time spent compressing, in nanoseconds.
+     */
+	private AtomicLong compressionTime = new AtomicLong();
+	
 		
 	public static void main(String[] args) {
 		new Server(args);
@@ -93,6 +207,8 @@ public class Server {
 				usernamePasswordMap.put(username, password);
 				
 				offlineMessage.put(username, new ArrayList<String>());
+				
+				offlineCursor.put(username, 0);
 			}
 			
 			input.close();
@@ -130,6 +246,95 @@ public class Server {
 		}
 	}
 	
+	/**
+     * This method enqueues a message to each recipient. If there are at least
+     * FAN_OUT_THRESHOLD recipients, the list is split into chunks of FAN_OUT_CHUNK
+     * recipients which are enqueued in parallel. It returns once every recipient
+     * has the message in its queue.
+     */
+	private void fanOut(List<ClientThread> recipients, String text) {
+		OutgoingMessage message = new OutgoingMessage(text);
+		
+		if (recipients.size() < FAN_OUT_THRESHOLD) {
+			for (ClientThread recipient: recipients) {
+				recipient.deliver(message);
+			}
+		}
+		else {
+			fanOutPool.invoke(new FanOutTask(recipients, 0, recipients.size(), message));
+		}
+	}
+	
+	/**
+	 * This class represents a message which is queued for one or more clients.
+	 * The message is encoded once for all recipients, but each compressed session
+	 * compresses it with its own deflater: every session has its own history (its
+	 * login prompts, private messages, etc.), so no two sessions share a dictionary
+	 * state from which the compressed bytes could be reused.
+	 */
+	class OutgoingMessage {
+		/*
+	     * The message encoded as a line.
+	     */
+		private byte[] bytes;
+		
+		public OutgoingMessage(String text) {
+			this.bytes = (text + '\n').getBytes(StandardCharsets.UTF_8);
+		}
+	}
+	
+	/**
+	 * This class represents the task which enqueues a message to a range of recipients.
+	 */
+	class FanOutTask extends RecursiveAction {
+		/*
+	     * Serial version UID.
+	     */
+		private static final long serialVersionUID = 1;
+		
+		/*
+	     * All recipients of the message.
+	     */
+		private List<ClientThread> recipients;
+		
+		/*
+	     * Index of the first recipient handled by this task.
+	     */
+		private int from;
+		
+		/*
+	     * Index after the last recipient handled by this task.
+	     */
+		private int to;
+		
+		/*
+	     * The message to be enqueued.
+	     */
+		private OutgoingMessage message;
+		
+		public FanOutTask(List<ClientThread> recipients, int from, int to, OutgoingMessage message) {
+			this.recipients = recipients;
+			this.from = from;
+			this.to = to;
+			this.message = message;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= FAN_OUT_CHUNK) {
+				for (int i = from; i < to; i++) {
+					recipients.get(i).deliver(message);
+				}
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				
+				invokeAll(new FanOutTask(recipients, from, middle, message),
+						  new FanOutTask(recipients, middle, to, message));
+			}
+		}
+	}
+	
 	/**
 	 * This class represents each connection form clients.
 	 */
@@ -142,13 +347,41 @@ public class Server {
 		/*
 	     * Data input stream from the client.
 	     */
-		private BufferedReader fromClient;
+		private LineDecoder fromClient;
 		
 		/*
 	     * Data output stream to the client.
 	     */
 		private DataOutputStream toClient;
 		
+		/*
+	     * The deflater of the session, or null if the session is not compressed.
+	     */
+		private Deflater deflater;
+		
+		/*
+	     * Number of bytes written to this session before and after compression.
+	     */
+		private long sessionUncompressedBytes;
+		
+		private long sessionCompressedBytes;
+		
+		/*
+	     * Messages from other users which are waiting to be written to the client.
+	     */
+		private ConcurrentLinkedQueue<OutgoingMessage> outbox = new ConcurrentLinkedQueue<OutgoingMessage>();
+		
+		/*
+	     * Whether a writer task is currently draining the outbox.
+	     */
+		private AtomicBoolean isDraining = new AtomicBoolean(false);
+		
+		/*
+	     * Number of offline messages which will be delivered once the client
+	     * acknowledges the page it is receiving, or -1 if no page is being sent.
+	     */
+		private int offlinePageEnd = -1;
+		
 		/*
 	     * IP address of the client.
 	     */
@@ -160,7 +393,7 @@ public class Server {
 		private String username;
 		
 		/*
-	     * Command from the client.
+	     * Command from the client, which is only decoded when it is needed.
 	     */
 		private String commandFromUser;
 		
@@ -182,8 +415,8 @@ public class Server {
 				InetAddress inetAddress = socket.getInetAddress();
 				clientIpAddress = inetAddress.getHostAddress();
 				
-				fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));			
-				toClient = new DataOutputStream(socket.getOutputStream());
+				fromClient = new LineDecoder(socket.getInputStream(), MAX_LINE_LENGTH);			
+				toClient = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 				
 				log("Client " + clientIpAddress + " has connected to the server.");
 				
@@ -195,58 +428,198 @@ public class Server {
 					Timer clientTimer = new Timer();					
 					clientTimer.schedule(new ClientTimerTask(), new Date(), 1000);
 					
-					commandFromUser = fromClient.readLine();
+					//The connection is closed by the client.
+					if (!fromClient.readLine()) {
+						throw new EOFException();
+					}
+					
+					commandFromUser = null;
 					
 					//Close the timer after the client inputs his command.
 					clientTimer.cancel();
-										
-					String[] command = commandFromUser.split(" ");
-					
-					//Check the command from the client.
-					switch (command[0]) {
-					    case "whoelse":
-					    	whoElse();
-					    	break;
-					    	
-					    case "wholasthr":
-					    	whoLastHour();
-					    	break;
-					    
-					    case "wholast":
-					    	whoLast(command);
-					    	break;
-					    
-					    case "broadcast":
-					    	if (command[1].equals("message")) {
-					    		broadcastToAll(command);
-					    	}
-					    	else {
-					    		broadcastToList(command);
-					    	}
-					    	break;
-					    
-					    case "message":
-					    	privateMessage(command);
-					    	break;
-					    
-					    case "logout":
-					    	logOut();
-					    	break;
-					    
-					    case "":
-					    	break;
-					    
-					    default:
-					    	errorCommand();
-					    	break;
+					
+					//Check the command from the client without decoding it.
+					if (fromClient.isFirstToken(WHOELSE)) {
+						whoElse();
+					}
+					else if (fromClient.isFirstToken(WHOLASTHR)) {
+						whoLastHour();
+					}
+					else if (fromClient.isFirstToken(WHOLAST)) {
+						whoLast(command().split(" "));
+					}
+					else if (fromClient.isFirstToken(BROADCAST)) {
+						String[] command = command().split(" ");
+						
+						if (command[1].equals("message")) {
+							broadcastToAll(command);
+						}
+						else {
+							broadcastToList(command);
+						}
+					}
+					else if (fromClient.isFirstToken(MESSAGE)) {
+						privateMessage(command().split(" "));
+					}
+					else if (fromClient.isFirstToken(LOGOUT)) {
+						logOut();
+					}
+					else if (fromClient.isFirstToken(OFFLINEACK)) {
+						offlineAck(command().split(" "));
+					}
+					else if (fromClient.isFirstToken(SEARCH)) {
+						search(command().split(" "));
+					}
+					else if (!fromClient.isFirstToken(EMPTY)) {
+						errorCommand();
 					}
 				}	
 			}
 			catch (Exception e) {
 				log("The connection from client " + clientIpAddress + " is terminated.");
 				
-				onlineClients.remove(username);
+				if (username != null) {
+					onlineClients.remove(username);
+				}
+				
+				releaseCompression();
+			}
+		}
+		
+		/**
+	     * This method decodes the current command from the client.
+	     */
+		private String command() {
+			if (commandFromUser == null) {
+				commandFromUser = fromClient.decode();
+			}
+			
+			return commandFromUser;
+		}
+		
+		/**
+	     * This method reads a line from the client and decodes it.
+	     */
+		private String readLine() throws IOException {
+			if (!fromClient.readLine()) {
+				throw new EOFException();
+			}
+			
+			return fromClient.decode();
+		}
+		
+		/**
+	     * This method enqueues a message from another user and makes sure that
+	     * a writer task is draining the outbox. It never blocks on the socket.
+	     */
+		public void deliver(OutgoingMessage message) {
+			outbox.offer(message);
+			
+			if (isDraining.compareAndSet(false, true)) {
+				writerPool.execute(new DrainTask());
+			}
+		}
+		
+		/**
+	     * This method writes a message to the client. Writes are serialized since
+	     * writer tasks may write to the same client at the same time.
+	     */
+		private void write(String message) throws IOException {
+			synchronized (toClient) {
+				writeUnflushed(message);
+				toClient.flush();
+			}
+		}
+		
+		/**
+	     * This method writes a message to the client without flushing it. If the
+	     * session is compressed, the message is compressed with the session's deflater.
+	     * The caller must hold the lock of toClient.
+	     */
+		private void writeUnflushed(String message) throws IOException {
+			writeUnflushed(message.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		/**
+	     * This method writes the bytes of a message to the client without flushing
+	     * them, compressed if the session is compressed. The caller must hold the
+	     * lock of toClient.
+	     */
+		private void writeUnflushed(byte[] bytes) throws IOException {
+			if (deflater == null) {
+				toClient.write(bytes);
+				return;
+			}
+			
+			long startTime = System.nanoTime();
+			int length = Compression.compress(deflater, bytes, toClient);
+			
+			compressionTime.addAndGet(System.nanoTime() - startTime);
+			countCompressed(bytes.length, length);
+		}
+		
+		/**
+	     * This method updates the compression statistics of the session and the server.
+	     */
+		private void countCompressed(int uncompressedLength, int compressedLength) {
+			sessionUncompressedBytes += uncompressedLength;
+			sessionCompressedBytes += compressedLength;
+			
+			uncompressedBytes.addAndGet(uncompressedLength);
+			compressedBytes.addAndGet(compressedLength);
+		}
+		
+		/**
+	     * This method compresses the rest of the session in both directions, as
+	     * requested by the client.
+	     */
+		private void enableCompression() throws IOException {
+			synchronized (toClient) {
+				write(Compression.ACCEPTED + '\n');
+				
+				deflater = Compression.takeDeflater();
 			}
+			
+			fromClient.setInput(new Compression.InflatingInputStream(socket.getInputStream(), Compression.takeInflater()));
+			
+			log("Client " + clientIpAddress + " has enabled compression.");
+		}
+		
+		/**
+	     * This method returns the deflater and the inflater of a compressed session
+	     * to the pool, and logs the compression statistics of the session and the
+	     * server. It is only called by the thread of the session once its connection
+	     * is closed, so that the inflater is no longer read. The deflater is checked
+	     * and released under the lock of toClient, so that it is released once, and
+	     * never while a writer task is using it.
+	     */
+		private void releaseCompression() {
+			//No compression can have been negotiated before the streams were opened.
+			if (toClient == null) {
+				return;
+			}
+			
+			synchronized (toClient) {
+				if (deflater == null) {
+					return;
+				}
+				
+				Compression.giveBack(deflater);
+				
+				deflater = null;
+			}
+			
+			try {
+				fromClient.close();
+			}
+			catch (Exception e) {
+				//The connection is already closed.
+			}
+			
+			log("Compression of client " + clientIpAddress + ": " + sessionUncompressedBytes + " bytes sent as " +
+				sessionCompressedBytes + " bytes.");
+			log("Compression of the server: " + uncompressedBytes.get() + " bytes sent as " + compressedBytes.get() +
+				" bytes, " + compressionTime.get() / 1000000 + " ms spent compressing.");
 		}
 		
 		/**
@@ -259,20 +632,26 @@ public class Server {
 	     */
 		private void logIn() {		
 			try {
-				toClient.writeBytes("You need to log in before you use this chat room application." + '\n');
+				write("You need to log in before you use this chat room application." + '\n');
 				
 				String password;
 						
 				while (true) {
-					toClient.writeBytes("Username: " + '\n');
+					write("Username: " + '\n');
 					
-					username = fromClient.readLine();
+					username = readLine();
+					
+					//The client asks to compress the rest of the session.
+					if (Compression.REQUEST.equals(username) && deflater == null) {
+						enableCompression();
+						continue;
+					}
 					
 					//Check whether the username exists.
 					if (usernamePasswordMap.containsKey(username)) {
 						//Check whether the user has already logged in.
 						if (onlineClients.containsKey(username)) {
-							toClient.writeBytes("The username you entered is already logged in, please enter another username." + '\n');
+							write("The username you entered is already logged in, please enter another username." + '\n');
 						}
 						//Check whether the user and its IP address is blocked.
 						else if (blockedUsername.contains(username) && blockedIpAddress.containsKey(clientIpAddress)) {
@@ -283,7 +662,7 @@ public class Server {
 								blockedIpAddress.remove(clientIpAddress);
 							}
 							else {
-								toClient.writeBytes("Access from IP " + clientIpAddress + " has been bolcked, please wait for " + remainTime + " seconds." + '\n');							
+								write("Access from IP " + clientIpAddress + " has been bolcked, please wait for " + remainTime + " seconds." + '\n');							
 								
 								Thread.sleep(remainTime * 1000);
 							}
@@ -293,15 +672,15 @@ public class Server {
 						}					
 					}
 					else {
-						toClient.writeBytes("The username you entered does not exist, please enter your username again." + '\n');
+						write("The username you entered does not exist, please enter your username again." + '\n');
 					}
 				}
 							
 				//Give the user FAILURE_NUM chances to input his password.
 				for (int i = 0; i < FAILURE_NUM; i++) {
-					toClient.writeBytes("Password: " + '\n');
+					write("Password: " + '\n');
 					
-					password = fromClient.readLine();
+					password = readLine();
 					
 					//Check whether the password matches the username.
 					if (usernamePasswordMap.get(username).equals(password)) {
@@ -309,20 +688,17 @@ public class Server {
 						
 						log("User " + username + " (IP: " + clientIpAddress + ") has logged in.");
 						
-						toClient.writeBytes("You've logged in successfully. Welcome to the chat room!" + '\n');
-						toClient.writeBytes("Please enter your command AT ANY TIME you want." + '\n');
+						write("You've logged in successfully. Welcome to the chat room!" + '\n');
+						write("Please enter your command AT ANY TIME you want." + '\n');
 						
-						for (String m: offlineMessage.get(username)) {
-							toClient.writeBytes(m + '\n');
-						}
-						
-						offlineMessage.remove(username);
+						//Stream the offline messages page by page, interleaved with new messages.
+						sendOfflinePage();
 						
 						break;
 					}
 					
 					if (i < FAILURE_NUM - 1) {
-						toClient.writeBytes("The password you entered is incorrect, please enter your password again." + '\n');
+						write("The password you entered is incorrect, please enter your password again." + '\n');
 					}
 					//Block block access for this user from the failed attempt IP address for BLOCK_TIME seconds.
 					else {
@@ -334,7 +710,7 @@ public class Server {
 						
 						log("Access from client " + clientIpAddress + " will be bolcked for " + BLOCK_TIME + " seconds.");
 						
-						toClient.writeBytes("Since there are " + FAILURE_NUM + " consecutive failures, access from IP " +
+						write("Since there are " + FAILURE_NUM + " consecutive failures, access from IP " +
 						                    clientIpAddress + " will be bolcked for " + BLOCK_TIME + " seconds. " + 
 								            "Please wait." + '\n');
 						
@@ -349,6 +725,82 @@ public class Server {
 			}
 		}
 		
+		/**
+	     * This method enqueues the next page of offline messages to the client, after
+	     * the messages which are already queued. The page ends with a line which asks
+	     * the client to acknowledge it with "offlineack <number>". The messages are
+	     * only marked as delivered once the page is acknowledged, so a page which
+	     * was not acknowledged is sent again at the next login.
+	     */
+		private void sendOfflinePage() {
+			ArrayList<String> messages = offlineMessage.get(username);
+			int cursor = offlineCursor.get(username);
+			int total;
+			int chars = 0;
+			
+			synchronized (messages) {
+				total = messages.size();
+				offlinePageEnd = cursor;
+				
+				while (offlinePageEnd < total && offlinePageEnd - cursor < OFFLINE_PAGE_SIZE) {
+					String m = messages.get(offlinePageEnd);
+					
+					if (offlinePageEnd > cursor && chars + m.length() > OFFLINE_PAGE_CHARS) {
+						break;
+					}
+					
+					deliver(new OutgoingMessage(m));
+					
+					chars += m.length();
+					offlinePageEnd++;
+				}
+			}
+			
+			if (offlinePageEnd == cursor) {
+				offlinePageEnd = -1;
+				return;
+			}
+			
+			deliver(new OutgoingMessage("Offline messages " + (cursor + 1) + "-" + offlinePageEnd + " of " + total +
+										" have been delivered. Acknowledge with \"offlineack " + offlinePageEnd + "\"."));
+		}
+		
+		/**
+	     * This method handles the acknowledgement of a page of offline messages. The
+	     * acknowledged messages are marked as delivered, and the next page is sent.
+	     * Once all offline messages are delivered, they are removed.
+	     */
+		private void offlineAck(String[] command) {
+			try {
+				if (command.length != 2) {
+					errorCommand();
+					return;
+				}
+				
+				//Ignore a stale acknowledgement.
+				if (Integer.parseInt(command[1]) != offlinePageEnd) {
+					return;
+				}
+				
+				ArrayList<String> messages = offlineMessage.get(username);
+				
+				synchronized (messages) {
+					if (offlinePageEnd == messages.size()) {
+						messages.clear();
+						offlineCursor.put(username, 0);
+					}
+					else {
+						offlineCursor.put(username, offlinePageEnd);
+					}
+				}
+				
+				sendOfflinePage();
+			}
+			catch (NumberFormatException nfe) {
+				errorCommand();
+			}
+		}
+		
 		/**
 	     * This method displays name of other connected users.
 	     */
@@ -356,7 +808,7 @@ public class Server {
 			String whoElse = "";
 			
 			try {
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
 				Iterator<Entry<String, ClientThread>> it = onlineClients.entrySet().iterator();
 				
@@ -369,12 +821,12 @@ public class Server {
 				}
 							
 				if (whoElse.equals("")) {
-					toClient.writeBytes("Nobody is online now except you." + '\n');
+					write("Nobody is online now except you." + '\n');
 				}
 				else {
 					whoElse = whoElse.substring(0, whoElse.length() - 2);
 					
-					toClient.writeBytes("Other connected users: " + whoElse + "." + '\n');
+					write("Other connected users: " + whoElse + "." + '\n');
 				}				
 			}
 			catch (Exception e) {
@@ -387,7 +839,7 @@ public class Server {
 	     */
 		private void whoLastHour() {
 			try {
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
 				String whoLastHour = "";				
 				HashSet<String> set = new HashSet<String>();
@@ -421,12 +873,12 @@ public class Server {
 				}
 				
 				if (whoLastHour.equals("")) {
-					toClient.writeBytes("Nobody connected within the last " + LAST_HOUR + " hour(s) except you." + '\n');
+					write("Nobody connected within the last " + LAST_HOUR + " hour(s) except you." + '\n');
 				}
 				else {
 					whoLastHour = whoLastHour.substring(0, whoLastHour.length() - 2);
 					
-					toClient.writeBytes("Other users that connected within the last " + LAST_HOUR + " hour(s): " + whoLastHour + "." + '\n');
+					write("Other users that connected within the last " + LAST_HOUR + " hour(s): " + whoLastHour + "." + '\n');
 				}
 			}
 			catch (Exception e) {
@@ -444,10 +896,10 @@ public class Server {
 					return;
 				}
 				
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
 				if (Double.parseDouble(command[1]) >= 60) {
-					toClient.writeBytes("The time in minutes should be between 0~60, please enter your command again." + '\n');
+					write("The time in minutes should be between 0~60, please enter your command again." + '\n');
 					return;
 				}
 				
@@ -484,19 +936,19 @@ public class Server {
 				}
 				
 				if (whoLast.equals("")) {
-					toClient.writeBytes("Nobody connected within the last " + minutes + " minute(s) except you." + '\n');
+					write("Nobody connected within the last " + minutes + " minute(s) except you." + '\n');
 				}
 				else {
 					whoLast = whoLast.substring(0, whoLast.length() - 2);
 					
-					toClient.writeBytes("Other users that connected within the last " + minutes + " minute(s): " + whoLast + "." + '\n');
+					write("Other users that connected within the last " + minutes + " minute(s): " + whoLast + "." + '\n');
 				}
 			}
 			catch (NumberFormatException nfe) {
 				log("Error: user " + username + "'s command cannot be recognized.");
 				
 				try {
-				    toClient.writeBytes("Your input after the \"wholast\" command is not a number, please enter your command again." + '\n');
+				    write("Your input after the \"wholast\" command is not a number, please enter your command again." + '\n');
 				}
 				catch (Exception e) {
 					log("The connection from client " + clientIpAddress + " is terminated.");
@@ -517,7 +969,7 @@ public class Server {
 					return;
 				}
 				
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
 				String message = "";
 				
@@ -526,7 +978,8 @@ public class Server {
 				}
 				
 				message = username + ": " + message.trim();			
-				String whoElse = "";
+				StringBuilder whoElse = new StringBuilder();
+				ArrayList<ClientThread> recipients = new ArrayList<ClientThread>();
 				
 				Iterator<Entry<String, ClientThread>> it = onlineClients.entrySet().iterator();
 				
@@ -534,19 +987,24 @@ public class Server {
 					Map.Entry<String, ClientThread> client = (Map.Entry<String, ClientThread>)it.next();
 					
 					if (!client.getKey().equals(username)) {
-						client.getValue().toClient.writeBytes(message + '\n');
+						recipients.add(client.getValue());
 						
-						whoElse += client.getKey() + ", ";
+						whoElse.append(client.getKey()).append(", ");
 					}
 				}
 				
-				if (whoElse.equals("")) {
-					toClient.writeBytes("Nobody is online now except you." + '\n');
+				//Enqueue the message to all recipients before acknowledging the sender.
+				fanOut(recipients, message);
+				
+				searchIndex.add(username, null, message);
+				
+				if (whoElse.length() == 0) {
+					write("Nobody is online now except you." + '\n');
 				}
 				else {
-					whoElse = whoElse.substring(0, whoElse.length() - 2);
+					whoElse.setLength(whoElse.length() - 2);
 					
-					toClient.writeBytes("Your message has been broadcast to all online users: " + whoElse + "." + '\n');
+					write("Your message has been broadcast to all online users: " + whoElse + "." + '\n');
 				}
 			}
 			catch (Exception e) {
@@ -565,7 +1023,7 @@ public class Server {
 					return;
 				}
 				
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
 				ArrayList<String> users = new ArrayList<String>();				
 				int messageIndex = command.length;
@@ -577,7 +1035,7 @@ public class Server {
 					}
 					
 					if (!usernamePasswordMap.containsKey(command[i])) {
-						toClient.writeBytes("Error: user " + command[i] + " does not exist, please enter your command again." + '\n');					
+						write("Error: user " + command[i] + " does not exist, please enter your command again." + '\n');					
 						return;
 					}
 					
@@ -598,35 +1056,47 @@ public class Server {
 				message = username + ": " + message.trim();				
 				String whoElse = "";				
 				String notOnline = "";
+				ArrayList<ClientThread> recipients = new ArrayList<ClientThread>();
 				
 				for (int i = 0; i < users.size(); i++) {
+					ClientThread recipient = onlineClients.get(users.get(i));
+					
 					//Send message to the user directly if he is online.
-					if (onlineClients.containsKey(users.get(i))) {
-						onlineClients.get(users.get(i)).toClient.writeBytes(message + '\n');
+					if (recipient != null) {
+						recipients.add(recipient);
 						
 						whoElse += users.get(i) + ", ";
 					}
 					//Save message as an offline message if the user is not online.
 					else {
-						offlineMessage.get(users.get(i)).add(message);
+						ArrayList<String> messages = offlineMessage.get(users.get(i));
+						
+						synchronized (messages) {
+							messages.add(message);
+						}
 						
 						notOnline += users.get(i) + ", ";
 					}
 				}
 				
+				//Enqueue the message to all online recipients before acknowledging the sender.
+				fanOut(recipients, message);
+				
+				searchIndex.add(username, users.toArray(new String[users.size()]), message);
+				
 				if (!notOnline.equals("")) {
 					notOnline = notOnline.substring(0, notOnline.length() - 2);
 					
-					toClient.writeBytes("These users are not online: " + notOnline + ". Your message sent to these users will be saved as an offline message.");
+					write("These users are not online: " + notOnline + ". Your message sent to these users will be saved as an offline message.");
 				}
 				
 				if (whoElse.equals("")) {
-					toClient.writeBytes("" + '\n');
+					write("" + '\n');
 				}
 				else {
 					whoElse = whoElse.substring(0, whoElse.length() - 2);
 					
-					toClient.writeBytes("Your message has been broadcast to these users: " + whoElse + "." + '\n');
+					write("Your message has been broadcast to these users: " + whoElse + "." + '\n');
 				}				
 			}
 			catch (Exception e) {
@@ -645,12 +1115,12 @@ public class Server {
 					return;
 				}
 				
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
 				String user = command[1];
 				
 				if (!usernamePasswordMap.containsKey(user)) {
-					toClient.writeBytes("Error: user " + user + " does not exist, please enter your command again." + '\n');
+					write("Error: user " + user + " does not exist, please enter your command again." + '\n');
 					return;
 				}
 				
@@ -662,17 +1132,61 @@ public class Server {
 				
 				message = username + ": "  + message.trim();
 				
+				ClientThread recipient = onlineClients.get(user);
+				
+				searchIndex.add(username, new String[] {user}, message);
+				
 				//Send message to the user directly if he is online.
-				if (onlineClients.containsKey(user)) {
-					onlineClients.get(user).toClient.writeBytes(message + '\n');
+				if (recipient != null) {
+					recipient.deliver(new OutgoingMessage(message));
 					
-					toClient.writeBytes("Your message has been sent to user " + user + " successfully." + '\n');
+					write("Your message has been sent to user " + user + " successfully." + '\n');
 				}
 				//Save message as an offline message if the user is not online.
 				else {
-					offlineMessage.get(user).add(message);
+					ArrayList<String> messages = offlineMessage.get(user);
+					
+					synchronized (messages) {
+						messages.add(message);
+					}
+					
+					write("User " + user + " is not online. Your message will be saved as an offline message." + '\n');
+				}
+			}
+			catch (Exception e) {
+				log("The connection from client " + clientIpAddress + " is terminated.");
+			}
+		}
+		
+		/**
+	     * This method displays the messages which match the words after command
+	     * "search", among the messages the user sent or received, the best matches first.
+	     */
+		private void search(String[] command) {
+			try {
+				if (command.length < 2) {
+					errorCommand();
+					return;
+				}
+				
+				log("User " + username + "'s command: " + command());
+				
+				String query = command().substring(command[0].length()).trim();
+				List<String> hits = searchIndex.search(username, query, SEARCH_HITS);
+				
+				log("Message index: " + searchIndex.getStatistics() + ".");
+				
+				if (hits.isEmpty()) {
+					write("No message matches \"" + query + "\"." + '\n');
+				}
+				else {
+					StringBuilder result = new StringBuilder("Messages matching \"" + query + "\":" + '\n');
 					
-					toClient.writeBytes("User " + user + " is not online. Your message will be saved as an offline message." + '\n');
+					for (String hit: hits) {
+						result.append(hit).append('\n');
+					}
+					
+					write(result.toString());
 				}
 			}
 			catch (Exception e) {
@@ -685,18 +1199,17 @@ public class Server {
 	     */
 		private void logOut() {
 			try {
-				log("User " + username + "'s command: " + commandFromUser);
+				log("User " + username + "'s command: " + command());
 				
-				toClient.writeBytes("You're going to log out." + '\n');
+				write("You're going to log out." + '\n');
 				
 				long logOutTime = new Date().getTime() / 1000;
 				
 				hasLoggedOut.put(username, logOutTime);
 				
-				offlineMessage.put(username, new ArrayList<String>());
-				
 				onlineClients.remove(username);
 				
+				//The session's thread releases the compression once it finds the socket closed.
 				socket.close();
 				
 				log("User " + username + " has logged out.");
@@ -713,13 +1226,44 @@ public class Server {
 			try {
 				log("Error: user " + username + "'s command cannot be recognized.");
 				
-				toClient.writeBytes("Error: your command cannot be recognized, please enter your command again." + '\n');
+				write("Error: your command cannot be recognized, please enter your command again." + '\n');
 			}
 			catch (Exception e) {
 				log("The connection from client " + clientIpAddress + " is terminated.");
 			}
 		}
 		
+		/**
+		 * This class represents the task which writes the queued messages to the client.
+		 */
+		class DrainTask implements Runnable {
+			@Override
+			public void run() {
+				try {
+					synchronized (toClient) {
+						OutgoingMessage message;
+						
+						//Write all queued messages, then flush them together.
+						while ((message = outbox.poll()) != null) {
+							writeUnflushed(message.bytes);
+						}
+						
+						toClient.flush();
+					}
+				}
+				catch (Exception e) {
+					outbox.clear();
+				}
+				
+				isDraining.set(false);
+				
+				//A message may have been enqueued after the last poll.
+				if (!outbox.isEmpty() && isDraining.compareAndSet(false, true)) {
+					writerPool.execute(this);
+				}
+			}
+		}
+		
 		/**
 		 * This class represents the timer task of the timer.
 		 */
@@ -736,20 +1280,19 @@ public class Server {
 		            if ("000:00".equals(strTime)) { 
 		            	log("User " + username + " has been inactive for " + TIME_OUT + " minutes, he is automatically logged out.");
 						
-		            	toClient.writeBytes("Since you've been inactive for " + TIME_OUT + " minutes, the server automatically logged you out." + '\n');
+		            	write("Since you've been inactive for " + TIME_OUT + " minutes, the server automatically logged you out." + '\n');
 		            	
-		            	toClient.writeBytes("You're going to log out." + '\n');
+		            	write("You're going to log out." + '\n');
 						
 						long logOutTime = new Date().getTime() / 1000;
 						
 						hasLoggedOut.put(username, logOutTime);
 						
-						offlineMessage.put(username, new ArrayList<String>());
-						
 						onlineClients.remove(username);
 						
 						log("User " + username + " has logged out.");
 						
+						//The session's thread releases the compression once it finds the socket closed.
 						socket.close();
 
 		                this.cancel(); 
@@ -0,0 +1,212 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements the ACK frame which the receiver sends to the sender. All
+ * the ACKs of a transmission are sent over a single TCP connection as fixed-size
+ * binary frames, so the sender can read them without parsing any text.
+ *
+ * The ACK number is cumulative: it is the sequence number of the next packet the
+ * receiver expects. The SACK blocks report the packets which have been received
+ * out of order beyond it, so the sender only retransmits the missing ones.
+ */
+public class AckFrame {
+	/*
+     * The maximum number of SACK blocks in a frame.
+     */
+	public static final int MAX_SACK_BLOCKS = 3;
+
+	/*
+     * The size of an ACK frame in bytes.
+     */
+	public static final int SIZE = 16 + 8 * MAX_SACK_BLOCKS;
+
+	/*
+     * The ACK number of the frame, i.e. the next packet expected by the receiver.
+     */
+	public int ackNum;
+
+	/*
+     * The flag field of the frame, which is 16 (ACK = 1, FIN = 0), 17 (ACK = 1, FIN = 1)
+     * or 18 (ACK = 1, SYN = 1).
+     */
+	public byte flags;
+
+	/*
+     * The size of the receiver window, shifted right by the window scale.
+     */
+	public short windowSize;
+
+	/*
+     * The number of bits by which the window size field is shifted, so that the
+     * window can be larger than 65535 packets.
+     */
+	public int windowScale;
+
+	/*
+     * The largest MSS which the receiver accepts, which is only set in a SYN ACK.
+     */
+	public int mss;
+
+	/*
+     * The timestamp of the packet which made the receiver send the frame, which the
+     * sender takes an RTT sample from.
+     */
+	public int timestamp;
+
+	/*
+     * The number of SACK blocks in the frame.
+     */
+	public int sackNum;
+
+	/*
+     * The first sequence number of each SACK block.
+     */
+	public int[] sackStarts = new int[MAX_SACK_BLOCKS];
+
+	/*
+     * The sequence number after the last one of each SACK block.
+     */
+	public int[] sackEnds = new int[MAX_SACK_BLOCKS];
+
+	/*
+     * The number of chunks of the file which the receiver already holds, from which
+     * the transfer is resumed, which is only set in a SYN ACK.
+     */
+	public int resumeChunks;
+
+	/*
+     * The digest of the CRCs of the chunks which the receiver already holds, which
+     * is only set in a SYN ACK.
+     */
+	public int resumeDigest;
+
+	/**
+     * This method adds a SACK block of the packets from start to end - 1. It returns
+     * false if the frame is already full.
+     */
+	public boolean addSackBlock(int start, int end) {
+		if (this.sackNum == MAX_SACK_BLOCKS) {
+			return false;
+		}
+
+		this.sackStarts[this.sackNum] = start;
+		this.sackEnds[this.sackNum] = end;
+		this.sackNum++;
+		return true;
+	}
+
+	/**
+     * This method writes the frame to a buffer.
+     *
+     * byte[0] - byte[3]: 32-bit ACK number field
+     * byte[4]: 8-bit flag field
+     * byte[5]: 8-bit number of SACK blocks
+     * byte[6] - byte[7]: 16-bit window size field
+     * byte[8] - byte[9]: 16-bit MSS field
+     * byte[10]: 8-bit window scale field
+     * byte[11]: 8-bit unused space
+     * byte[12] - byte[15]: 32-bit timestamp echo field
+     * byte[16] - byte[39]: three SACK blocks of a 32-bit start and a 32-bit end
+     *
+     * A SYN ACK has no SACK blocks, so its first block holds the number of chunks
+     * and the digest from which the transfer is resumed.
+     */
+	public void write(ByteBuffer buff) {
+		buff.putInt(this.ackNum);
+		buff.put(this.flags);
+		buff.put((byte)this.sackNum);
+		buff.putShort(this.windowSize);
+		buff.putShort((short)this.mss);
+		buff.put((byte)this.windowScale);
+		buff.put((byte)0);
+		buff.putInt(this.timestamp);
+
+		//The unused SACK blocks are written as 0, so the frame size is fixed.
+		for (int i = 0; i < MAX_SACK_BLOCKS; i++) {
+			if (i == 0 && isSyn()) {
+				buff.putInt(this.resumeChunks);
+				buff.putInt(this.resumeDigest);
+				continue;
+			}
+
+			buff.putInt((i < this.sackNum) ? this.sackStarts[i] : 0);
+			buff.putInt((i < this.sackNum) ? this.sackEnds[i] : 0);
+		}
+	}
+
+	/**
+     * This method reads the frame from a buffer, which holds at least SIZE bytes.
+     */
+	public void read(ByteBuffer buff) {
+		this.ackNum = buff.getInt();
+		this.flags = buff.get();
+		this.sackNum = Math.min(buff.get(), MAX_SACK_BLOCKS);
+		this.windowSize = buff.getShort();
+		this.mss = buff.getShort() & 0xFFFF;
+		this.windowScale = Math.min(buff.get() & 0xFF, 14);
+		buff.get();
+		this.timestamp = buff.getInt();
+
+		for (int i = 0; i < MAX_SACK_BLOCKS; i++) {
+			this.sackStarts[i] = buff.getInt();
+			this.sackEnds[i] = buff.getInt();
+		}
+
+		this.resumeChunks = isSyn() ? this.sackStarts[0] : 0;
+		this.resumeDigest = isSyn() ? this.sackEnds[0] : 0;
+	}
+
+	/**
+     * This method returns the number of packets from the ACK number which the
+     * receiver can take.
+     */
+	public int getWindow() {
+		return (this.windowSize & 0xFFFF) << this.windowScale;
+	}
+
+	/**
+     * This method returns whether the SYN flag is set, so the frame is a SYN ACK.
+     * The ACK number of a SYN ACK is the size of the data of the SYN.
+     */
+	public boolean isSyn() {
+		return (this.flags & 2) != 0;
+	}
+
+	/**
+     * This method returns whether the FIN flag is set.
+     */
+	public boolean isFin() {
+		return (this.flags & 1) != 0;
+	}
+
+	/**
+     * This method returns the frame as it is written to the log files.
+     */
+	@Override
+	public String toString() {
+		String ack = "ACK Number " + this.ackNum + (isFin() ? ", ACK 1, FIN 1" : ", ACK 1, FIN 0");
+
+		if (isSyn()) {
+			ack += ", SYN 1, MSS " + this.mss;
+
+			if (this.resumeChunks > 0) {
+				ack += ", Resume " + this.resumeChunks;
+			}
+		}
+		else {
+			ack += ", Window " + getWindow();
+		}
+
+		for (int i = 0; i < this.sackNum; i++) {
+			ack += ((i == 0) ? ", SACK " : " ") + this.sackStarts[i] + "-" + (this.sackEnds[i] - 1);
+		}
+
+		return ack;
+	}
+}
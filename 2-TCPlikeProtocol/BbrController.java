@@ -0,0 +1,250 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+
+/**
+ * This class implements a congestion control in the style of BBR. Instead of
+ * reacting to losses, it builds a model of the path: the bottleneck bandwidth is
+ * the highest delivery rate of the last rounds, and the propagation delay is the
+ * smallest RTT of the last 10 seconds. The packets are paced at a gain times the
+ * bottleneck bandwidth. The gain is high in the startup phase until the bandwidth
+ * stops growing, and then cycles around 1 to probe for more bandwidth. The window
+ * is a fixed gain times the product of the bandwidth and the delay (the
+ * bandwidth-delay product), so that it does not limit the pacing.
+ */
+public class BbrController implements CongestionController {
+	/*
+     * The gain of the startup phase, which doubles the delivery rate every round.
+     */
+	private static final double HIGH_GAIN = 2.885;
+
+	/*
+     * The gains of the rounds of the bandwidth probing phase.
+     */
+	private static final double[] GAIN_CYCLE = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+
+	/*
+     * The gain of the window after the startup phase, which leaves room for the
+     * delayed and stretched ACKs.
+     */
+	private static final double CWND_GAIN = 2;
+
+	/*
+     * The number of rounds over which the highest delivery rate is kept.
+     */
+	private static final int BW_ROUNDS = 10;
+
+	/*
+     * The time for which the smallest RTT sample is kept.
+     */
+	private static final long MIN_RTT_WINDOW = 10000000000L;
+
+	/*
+     * The smallest window in packets.
+     */
+	private static final int MIN_WINDOW = 4;
+
+	/*
+     * The startup phase, which looks for the bottleneck bandwidth.
+     */
+	private static final int STARTUP = 0;
+
+	/*
+     * The phase which drains the queue built by the startup phase.
+     */
+	private static final int DRAIN = 1;
+
+	/*
+     * The phase which probes for more bandwidth in a cycle of gains.
+     */
+	private static final int PROBE_BW = 2;
+
+	/*
+     * The current phase.
+     */
+	private int state = STARTUP;
+
+	/*
+     * The congestion window in packets.
+     */
+	private double cwnd = MIN_WINDOW;
+
+	/*
+     * The delivery rate of each of the last rounds, in packets per nanosecond.
+     */
+	private double[] bwSamples = new double[BW_ROUNDS];
+
+	/*
+     * The number of rounds so far.
+     */
+	private int round;
+
+	/*
+     * The smallest RTT sample.
+     */
+	private long minRtt = Long.MAX_VALUE;
+
+	/*
+     * The time when the smallest RTT sample was taken.
+     */
+	private long minRttStamp;
+
+	/*
+     * The number of packets acknowledged so far.
+     */
+	private long delivered;
+
+	/*
+     * The time when the current round started.
+     */
+	private long roundStart;
+
+	/*
+     * The number of packets acknowledged when the current round started.
+     */
+	private long roundDelivered;
+
+	/*
+     * The bandwidth at which the startup phase last grew by 25%.
+     */
+	private double fullBw;
+
+	/*
+     * The number of rounds since the startup phase last grew by 25%.
+     */
+	private int fullBwRounds;
+
+	/*
+     * The position in the gain cycle.
+     */
+	private int cycleIndex;
+
+	@Override
+	public void onAck(int ackedPkts, long rtt, boolean isCwndLimited, long now) {
+		this.delivered += ackedPkts;
+
+		if (rtt > 0 && (rtt <= this.minRtt || now - this.minRttStamp > MIN_RTT_WINDOW)) {
+			this.minRtt = rtt;
+			this.minRttStamp = now;
+		}
+
+		if (this.roundStart == 0) {
+			this.roundStart = now;
+			this.roundDelivered = this.delivered - ackedPkts;
+		}
+
+		//A round lasts one RTT, and gives one sample of the delivery rate.
+		if (this.minRtt != Long.MAX_VALUE && now - this.roundStart >= this.minRtt) {
+			this.bwSamples[this.round % BW_ROUNDS] = (this.delivered - this.roundDelivered) / (double)(now - this.roundStart);
+			this.round++;
+			this.roundStart = now;
+			this.roundDelivered = this.delivered;
+			nextRound();
+		}
+
+		double bdp = getBtlBw() * ((this.minRtt == Long.MAX_VALUE) ? 0 : this.minRtt);
+
+		if (bdp == 0) {
+			//Grow as in slow start until there is a model of the path, but only if
+			//the window is used.
+			if (isCwndLimited) {
+				this.cwnd += ackedPkts;
+			}
+		}
+		else {
+			this.cwnd = Math.max(MIN_WINDOW, getCwndGain() * bdp);
+		}
+	}
+
+	/**
+     * This method moves to the next phase at the end of a round.
+     */
+	private void nextRound() {
+		if (this.state == STARTUP) {
+			//The pipe is full once the bandwidth has not grown by 25% for three rounds.
+			double btlBw = getBtlBw();
+
+			if (btlBw >= this.fullBw * 1.25) {
+				this.fullBw = btlBw;
+				this.fullBwRounds = 0;
+			}
+			else if (++this.fullBwRounds >= 3) {
+				this.state = DRAIN;
+			}
+		}
+		else if (this.state == DRAIN) {
+			//The queue built by the startup phase is drained in one round.
+			this.state = PROBE_BW;
+			this.cycleIndex = 0;
+		}
+		else {
+			this.cycleIndex = (this.cycleIndex + 1) % GAIN_CYCLE.length;
+		}
+	}
+
+	/**
+     * This method returns the pacing gain of the current phase.
+     */
+	private double getGain() {
+		if (this.state == STARTUP) {
+			return HIGH_GAIN;
+		}
+		else if (this.state == DRAIN) {
+			return 1 / HIGH_GAIN;
+		}
+
+		return GAIN_CYCLE[this.cycleIndex];
+	}
+
+	/**
+     * This method returns the gain of the window. It stays high until the queue
+     * built by the startup phase has been drained, which is done by the pacing.
+     */
+	private double getCwndGain() {
+		return (this.state == PROBE_BW) ? CWND_GAIN : HIGH_GAIN;
+	}
+
+	/**
+     * This method returns the bottleneck bandwidth in packets per nanosecond.
+     */
+	private double getBtlBw() {
+		double btlBw = 0;
+
+		for (int i = 0; i < BW_ROUNDS; i++) {
+			btlBw = Math.max(btlBw, this.bwSamples[i]);
+		}
+
+		return btlBw;
+	}
+
+	@Override
+	public void onLoss(long now) {
+		//The model does not change on a loss.
+	}
+
+	@Override
+	public void onTimeout(long now) {
+		//Only send the retransmission until the next ACK restores the window.
+		this.cwnd = 1;
+	}
+
+	@Override
+	public int getWindow() {
+		return (int)Math.max(1, Math.min(this.cwnd, Integer.MAX_VALUE));
+	}
+
+	@Override
+	public double getPacingRate(long srtt) {
+		double btlBw = getBtlBw();
+
+		//Until there is a model of the path, pace the window as in the startup phase.
+		if (btlBw == 0) {
+			return HIGH_GAIN * this.cwnd / Math.max(srtt, 1);
+		}
+
+		return getGain() * btlBw;
+	}
+}
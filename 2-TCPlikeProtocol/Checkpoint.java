@@ -0,0 +1,298 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements the checkpoint of a received file, which lets a transfer
+ * that has been cut off resume where it stopped. The file is split into chunks of
+ * CHUNK_SIZE bytes, and the checkpoint file holds the CRC32 of each chunk which
+ * has been written, in order. The packets are written in order, so the chunks are
+ * a high-water mark of the file, and nothing else has to be kept.
+ *
+ * When the sender starts again, the chunks are read back from the received file
+ * and checked against their CRCs, so a chunk which did not reach the disk is sent
+ * again. The sender then checks the digest of the CRCs against its own file, so
+ * that a file which has changed is sent from the start.
+ *
+ * The checkpoint file is a 12-byte header, which is the length of the sent file
+ * (64 bits) and CHUNK_SIZE (32 bits), followed by the CRC32 of each chunk.
+ */
+public class Checkpoint {
+	/*
+     * The size of a chunk in bytes.
+     */
+	public static final int CHUNK_SIZE = 1 << 20;
+
+	/*
+     * The size of the header of the checkpoint file in bytes.
+     */
+	private static final int HEADER_SIZE = 12;
+
+	/*
+     * The size of the buffer from which the chunks are read and hashed.
+     */
+	private static final int READ_SIZE = 64 << 10;
+
+	/*
+     * The name of the checkpoint file.
+     */
+	private String name;
+
+	/*
+     * The length of the sent file, which the sender gives in its SYN.
+     */
+	private long fileLength;
+
+	/*
+     * The number of chunks which the received file holds.
+     */
+	private int chunks;
+
+	/*
+     * The CRC32 of the CRCs of the chunks which the received file holds.
+     */
+	private int digest;
+
+	/*
+     * Whether the chunks of the received file have been checked.
+     */
+	private volatile boolean isLoaded;
+
+	/*
+     * The checkpoint file to which the CRCs are added, or null if it is closed.
+     */
+	private RandomAccessFile file;
+
+	/*
+     * The CRC32 of the data of the current chunk which has been written.
+     */
+	private CRC32 crc = new CRC32();
+
+	/*
+     * The buffer into which the data is copied to be hashed.
+     */
+	private byte[] bytes = new byte[READ_SIZE];
+
+	/*
+     * The offset in the received file of the next byte which is written.
+     */
+	private long position;
+
+	public Checkpoint(String fileName, long fileLength) {
+		this.name = fileName + ".ckpt";
+		this.fileLength = fileLength;
+
+		//Without a checkpoint file, there is nothing to check.
+		this.isLoaded = !new File(this.name).exists();
+	}
+
+	/**
+     * This method returns whether the chunks of the received file have been checked,
+     * so the receiver can tell the sender where to resume.
+     */
+	public boolean isLoaded() {
+		return this.isLoaded;
+	}
+
+	/**
+     * This method returns the number of chunks which the received file holds.
+     */
+	public int getChunks() {
+		return this.chunks;
+	}
+
+	/**
+     * This method returns the digest of the CRCs of the chunks which the received
+     * file holds.
+     */
+	public int getDigest() {
+		return this.digest;
+	}
+
+	/**
+     * This method reads the checkpoint file, and checks the chunks of the received
+     * file against it up to the first one which does not match. A checkpoint which
+     * is for another file or cannot be read is ignored, so the whole file is sent
+     * again. It is called by the disk writer, since it reads the received file.
+     */
+	public void load(String fileName) {
+		DataInputStream in = null;
+		FileChannel channel = null;
+		CRC32 digestCrc = new CRC32();
+		int chunks = 0;
+
+		try {
+			File file = new File(this.name);
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			channel = new RandomAccessFile(fileName, "r").getChannel();
+
+			if (in.readLong() == this.fileLength && in.readInt() == CHUNK_SIZE) {
+				long entries = Math.min((file.length() - HEADER_SIZE) / 4, channel.size() / CHUNK_SIZE);
+				ByteBuffer buff = ByteBuffer.wrap(this.bytes);
+
+				while (chunks < entries && hashChunk(channel, chunks, this.crc, buff) == in.readInt()) {
+					addToDigest(digestCrc, (int)this.crc.getValue());
+					chunks++;
+				}
+			}
+		}
+		catch (IOException e) {
+			//The chunks which have been checked are kept.
+		}
+		finally {
+			closeQuietly(in);
+			closeQuietly(channel);
+		}
+
+		this.chunks = chunks;
+		this.digest = (int)digestCrc.getValue();
+		this.isLoaded = true;
+	}
+
+	/**
+     * This method opens the checkpoint file when the received file is opened, and
+     * the packets are written from the given offset. A transfer which starts from
+     * the beginning drops the old chunks. A resumed one keeps them, and its first
+     * packets, which the file already holds, are not hashed again.
+     */
+	public void open(long position) throws IOException {
+		if (position == 0) {
+			this.chunks = 0;
+		}
+
+		this.file = new RandomAccessFile(this.name, "rw");
+		this.file.setLength(HEADER_SIZE + 4L * this.chunks);
+		this.file.writeLong(this.fileLength);
+		this.file.writeInt(CHUNK_SIZE);
+		this.file.seek(HEADER_SIZE + 4L * this.chunks);
+		this.position = position;
+		this.crc.reset();
+	}
+
+	/**
+     * This method hashes the remaining data of a packet which has been written at
+     * the current offset, and adds the CRC of each chunk which it completes to the
+     * checkpoint file. The checkpoint file is not forced to the disk, since the
+     * chunks are checked again before a transfer is resumed.
+     */
+	public void add(ByteBuffer buff) throws IOException {
+		long start = (long)this.chunks * CHUNK_SIZE;
+
+		//The data before the current chunk is already in the checkpoint.
+		if (this.position < start) {
+			int skip = (int)Math.min(start - this.position, buff.remaining());
+
+			buff.position(buff.position() + skip);
+			this.position += skip;
+		}
+
+		while (buff.hasRemaining()) {
+			long end = (long)(this.chunks + 1) * CHUNK_SIZE;
+			int length = (int)Math.min(Math.min(buff.remaining(), READ_SIZE), end - this.position);
+
+			buff.get(this.bytes, 0, length);
+			this.crc.update(this.bytes, 0, length);
+			this.position += length;
+
+			if (this.position == end) {
+				this.file.writeInt((int)this.crc.getValue());
+				this.crc.reset();
+				this.chunks++;
+			}
+		}
+	}
+
+	/**
+     * This method closes the checkpoint file, which is kept so that the transfer
+     * can be resumed.
+     */
+	public void close() throws IOException {
+		if (this.file != null) {
+			this.file.close();
+			this.file = null;
+		}
+	}
+
+	/**
+     * This method closes and deletes the checkpoint file once the whole file has
+     * reached the disk.
+     */
+	public void delete() throws IOException {
+		close();
+		new File(this.name).delete();
+	}
+
+	/**
+     * This method returns the digest of the CRCs of the first chunks of a file,
+     * which the sender compares with the one of the receiver.
+     */
+	public static int getDigest(FileChannel channel, int chunks) throws IOException {
+		CRC32 crc = new CRC32();
+		CRC32 digestCrc = new CRC32();
+		ByteBuffer buff = ByteBuffer.allocate(READ_SIZE);
+
+		for (int i = 0; i < chunks; i++) {
+			addToDigest(digestCrc, hashChunk(channel, i, crc, buff));
+		}
+
+		return (int)digestCrc.getValue();
+	}
+
+	/**
+     * This method returns the CRC32 of a chunk of a file, which is read through a
+     * heap buffer.
+     */
+	private static int hashChunk(FileChannel channel, int chunk, CRC32 crc, ByteBuffer buff) throws IOException {
+		long position = (long)chunk * CHUNK_SIZE;
+		long end = position + CHUNK_SIZE;
+
+		crc.reset();
+
+		while (position < end) {
+			buff.clear();
+			buff.limit((int)Math.min(buff.capacity(), end - position));
+
+			int length = channel.read(buff, position);
+
+			if (length < 0) {
+				throw new EOFException();
+			}
+
+			crc.update(buff.array(), 0, length);
+			position += length;
+		}
+
+		return (int)crc.getValue();
+	}
+
+	/**
+     * This method adds the CRC of a chunk to a digest, as 4 bytes in network order.
+     */
+	private static void addToDigest(CRC32 digestCrc, int value) {
+		digestCrc.update(value >>> 24);
+		digestCrc.update(value >>> 16);
+		digestCrc.update(value >>> 8);
+		digestCrc.update(value);
+	}
+
+	/**
+     * This method closes a stream or channel, and ignores an error.
+     */
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+				//Nothing was written to it.
+			}
+		}
+	}
+}
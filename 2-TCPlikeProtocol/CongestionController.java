@@ -0,0 +1,45 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+
+/**
+ * This interface defines the congestion control of the sender. The sender reports
+ * the ACKs, losses and timeouts to the controller, and never has more packets in
+ * flight than the congestion window of the controller. All the times are in
+ * nanoseconds.
+ */
+public interface CongestionController {
+	/**
+     * This method is called when an ACK acknowledges new packets. The RTT sample
+     * is -1 if the ACK does not give one. As in RFC 7661, the window is only grown
+     * if the sender is limited by it, i.e. it has filled the window in the last
+     * round trip, rather than being limited by the application or the receiver.
+     */
+	public void onAck(int ackedPkts, long rtt, boolean isCwndLimited, long now);
+
+	/**
+     * This method is called when a packet is found to be lost before its timer
+     * expires the first time. It is called at most once per window of packets.
+     */
+	public void onLoss(long now);
+
+	/**
+     * This method is called when the oldest packet which is not acknowledged
+     * times out.
+     */
+	public void onTimeout(long now);
+
+	/**
+     * This method returns the congestion window in packets, which is at least 1.
+     */
+	public int getWindow();
+
+	/**
+     * This method returns the rate at which the sender spaces its packets, in
+     * packets per nanosecond, given the smoothed RTT.
+     */
+	public double getPacingRate(long srtt);
+}
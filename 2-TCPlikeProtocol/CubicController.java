@@ -0,0 +1,143 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+
+/**
+ * This class implements the CUBIC congestion control (RFC 8312). After a loss, the
+ * window follows a cubic function of the time since the loss, which is flat around
+ * the window where the loss happened and grows quickly away from it. So the window
+ * does not depend on the RTT as much as with Reno. Slow start is the same as Reno.
+ */
+public class CubicController implements CongestionController {
+	/*
+     * The scaling constant of the cubic function.
+     */
+	private static final double C = 0.4;
+
+	/*
+     * The multiplicative decrease factor.
+     */
+	private static final double BETA = 0.7;
+
+	/*
+     * The congestion window in packets.
+     */
+	private double cwnd = 4;
+
+	/*
+     * The slow start threshold in packets.
+     */
+	private double ssthresh = Integer.MAX_VALUE;
+
+	/*
+     * The window just before the last loss.
+     */
+	private double wMax;
+
+	/*
+     * The window which Reno would have at the same time, so that CUBIC is never
+     * slower than Reno on short RTT paths.
+     */
+	private double wEst;
+
+	/*
+     * The time in seconds for the cubic function to grow back to wMax.
+     */
+	private double k;
+
+	/*
+     * The time when the current congestion avoidance epoch started, or 0.
+     */
+	private long epochStart;
+
+	/*
+     * The smallest RTT sample.
+     */
+	private long minRtt = Long.MAX_VALUE;
+
+	@Override
+	public void onAck(int ackedPkts, long rtt, boolean isCwndLimited, long now) {
+		if (rtt > 0) {
+			this.minRtt = Math.min(this.minRtt, rtt);
+		}
+
+		//The cubic function does not run while the window is not used, so a new
+		//epoch starts from the current window once it is.
+		if (!isCwndLimited) {
+			this.epochStart = 0;
+			return;
+		}
+
+		if (this.cwnd < this.ssthresh) {
+			this.cwnd += ackedPkts;
+			return;
+		}
+
+		//Start a new epoch at the first ACK of congestion avoidance.
+		if (this.epochStart == 0) {
+			this.epochStart = now;
+			this.wEst = this.cwnd;
+
+			if (this.cwnd < this.wMax) {
+				this.k = Math.cbrt((this.wMax - this.cwnd) / C);
+			}
+			else {
+				this.k = 0;
+				this.wMax = this.cwnd;
+			}
+		}
+
+		//The target is the window of the cubic function one RTT from now.
+		long rttNow = (this.minRtt == Long.MAX_VALUE) ? 0 : this.minRtt;
+		double t = (now - this.epochStart + rttNow) / 1e9;
+		double target = C * Math.pow(t - this.k, 3) + this.wMax;
+
+		if (target > this.cwnd) {
+			this.cwnd += Math.min(target - this.cwnd, this.cwnd) * ackedPkts / this.cwnd;
+		}
+		else {
+			this.cwnd += 0.01 * ackedPkts / this.cwnd;
+		}
+
+		//The window of Reno with the same average window as CUBIC.
+		this.wEst += 3 * (1 - BETA) / (1 + BETA) * ackedPkts / this.cwnd;
+		this.cwnd = Math.max(this.cwnd, this.wEst);
+	}
+
+	@Override
+	public void onLoss(long now) {
+		reduce();
+		this.cwnd = this.ssthresh;
+	}
+
+	@Override
+	public void onTimeout(long now) {
+		reduce();
+		this.cwnd = 1;
+	}
+
+	/**
+     * This method remembers the window of a loss and sets the slow start threshold.
+     * If the window is below the one of the previous loss, the other flows need more
+     * bandwidth, so wMax is lowered further to release it faster.
+     */
+	private void reduce() {
+		this.epochStart = 0;
+		this.wMax = (this.cwnd < this.wMax) ? this.cwnd * (1 + BETA) / 2 : this.cwnd;
+		this.ssthresh = Math.max(this.cwnd * BETA, 2);
+	}
+
+	@Override
+	public int getWindow() {
+		return (int)Math.max(1, Math.min(this.cwnd, Integer.MAX_VALUE));
+	}
+
+	@Override
+	public double getPacingRate(long srtt) {
+		//The same as Reno: twice the window per RTT in slow start, 1.2 times afterwards.
+		return ((this.cwnd < this.ssthresh) ? 2 : 1.2) * this.cwnd / Math.max(srtt, 1);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class implements the thread which writes the packets in order of the flows
+ * to their received files, so that the receiver does not wait for the disk. A flow
+ * is queued once however many packets it hands over, and all of them are written
+ * when its turn comes. The receiver is woken after each flow, to free the written
+ * buffers and open its window again.
+ */
+public class DiskWriter extends Thread {
+	/*
+     * The largest number of buffers which are written at once.
+     */
+	private static final int MAX_WRITE = 1024;
+
+	/*
+     * The flows which have packets to write, or whose file has to be closed.
+     */
+	private LinkedBlockingQueue<Flow> queue = new LinkedBlockingQueue<Flow>();
+
+	/*
+     * The buffers of a run of packets, which are written at once.
+     */
+	private ByteBuffer[] writeBuffs = new ByteBuffer[MAX_WRITE];
+
+	/*
+     * The selector on which the receiver waits for packets.
+     */
+	private Selector selector;
+
+	public DiskWriter(Selector selector) {
+		this.selector = selector;
+		setDaemon(true);
+	}
+
+	/**
+     * This method queues a flow which has packets to write, or has been closed.
+     * A flow which is already in the queue is not added again.
+     */
+	public void schedule(Flow flow) {
+		if (flow.isWriteQueued.compareAndSet(false, true)) {
+			this.queue.add(flow);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Flow flow = this.queue.take();
+
+				//The flag is cleared first, so the packets handed over from now on
+				//queue the flow again.
+				flow.isWriteQueued.set(false);
+				flow.write(this.writeBuffs);
+				this.selector.wakeup();
+			}
+		}
+		catch (InterruptedException e) {
+			//The receiver has exited.
+		}
+	}
+}
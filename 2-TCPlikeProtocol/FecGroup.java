@@ -0,0 +1,128 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements a group of the forward error correction. The data packets
+ * of a block of K packets are split into M groups, packet i of the block being in
+ * group i % M, and each group has a parity packet which is the XOR of their data.
+ * So a parity packet recovers one lost packet of its group, and a burst of up to M
+ * lost packets in a row is recovered by the M parity packets of the block.
+ *
+ * The sender uses a group to build a parity packet. The receiver keeps a group for
+ * each group in its window, and adds each packet to it as it arrives, so that the
+ * packets do not have to be kept once they have been written. Once the parity
+ * packet and all the packets but one have been added, the group holds the data of
+ * the lost packet.
+ */
+public class FecGroup {
+	/*
+     * The XOR of the data added to the group, in 64-bit words.
+     */
+	private long[] words;
+
+	/*
+     * The sequence number of the first packet of the block of the group, or -1.
+     */
+	public int block = -1;
+
+	/*
+     * The number of data packets added to the group.
+     */
+	public int count;
+
+	/*
+     * The number of data packets in the group, which is known once the parity packet
+     * has been added.
+     */
+	public int size;
+
+	/*
+     * Whether the parity packet has been added to the group.
+     */
+	public boolean hasParity;
+
+	/*
+     * The XOR of the payload lengths of the packets added to the group. Once the
+     * parity packet has been added, it is the length of the missing packet.
+     */
+	public int lengthXor;
+
+	/*
+     * The XOR of the sequence numbers of the packets added to the group. Once the
+     * parity packet has been added, it is the sequence number of the missing packet.
+     */
+	public int seqXor;
+
+	/*
+     * The sequence number of the FIN packet if it is in the group, or -1.
+     */
+	public int finSeqNum = -1;
+
+	public FecGroup(int mss) {
+		this.words = new long[(mss + 7) / 8];
+	}
+
+	/**
+     * This method empties the group for the given block.
+     */
+	public void reset(int block) {
+		for (int i = 0; i < this.words.length; i++) {
+			this.words[i] = 0;
+		}
+
+		this.block = block;
+		this.count = 0;
+		this.size = 0;
+		this.hasParity = false;
+		this.lengthXor = 0;
+		this.seqXor = 0;
+		this.finSeqNum = -1;
+	}
+
+	/**
+     * This method adds length bytes of a buffer from the given offset to the XOR of
+     * the group. The data is read in 64-bit words, and the last bytes are padded
+     * with 0, so a short packet is XORed as if it were padded to the MSS.
+     */
+	public void add(ByteBuffer src, int offset, int length) {
+		int w = 0;
+
+		for (; (w + 1) * 8 <= length; w++) {
+			this.words[w] ^= src.getLong(offset + w * 8);
+		}
+
+		for (int i = w * 8; i < length; i++) {
+			this.words[w] ^= (src.get(offset + i) & 0xFFL) << (56 - (i - w * 8) * 8);
+		}
+	}
+
+	/**
+     * This method writes the first length bytes of the XOR of the group to a buffer
+     * at the given offset.
+     */
+	public void write(ByteBuffer dst, int offset, int length) {
+		int w = 0;
+
+		for (; (w + 1) * 8 <= length; w++) {
+			dst.putLong(offset + w * 8, this.words[w]);
+		}
+
+		for (int i = w * 8; i < length; i++) {
+			dst.put(offset + i, (byte)(this.words[w] >>> (56 - (i - w * 8) * 8)));
+		}
+	}
+
+	/**
+     * This method returns the sequence number of the packet which the group can
+     * recover, which is when the parity packet and all the others have been added,
+     * or -1.
+     */
+	public int getLostSeqNum() {
+		return (this.hasParity && this.count == this.size - 1) ? this.seqXor : -1;
+	}
+}
@@ -0,0 +1,934 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class keeps the state of one transfer at the receiver, which is identified
+ * by the connection ID in the header of its packets. The packets are kept in a
+ * reorder buffer until they are written to the received file at the offset of
+ * their sequence number.
+ *
+ * The reorder buffer holds the packets received out of order, and also the ones
+ * in order which wait for the disk writer. So its free space is the window which
+ * the receiver advertises, and a slow disk makes it shrink. The packets in order
+ * are handed to the disk writer up to readySeqNum, the writer writes them up to
+ * writtenSeqNum, and the receiver frees their buffers up to reclaimedSeqNum.
+ *
+ * The reorder buffer is only made for the first packet, and is dropped once the
+ * transfer is finished, so the record of an idle flow is small.
+ *
+ * A transfer may resume a file which has been cut off. The written packets are
+ * then recorded in the checkpoint of the file, and the first packet tells from
+ * which sequence number the sender has resumed.
+ */
+public class Flow {
+	/*
+     * The MSS which every path carries, which is the size of the packet buffers
+     * until a larger MSS is agreed.
+     */
+	public static final int BASE_MSS = 576;
+
+	/*
+     * The length of the header in bytes.
+     */
+	public static final int HEADER_LENGTH = 36;
+
+	/*
+     * The largest number of bytes which the reorder buffer of a flow holds.
+     */
+	private static final int MAX_BUFFER_BYTES = 64 << 20;
+
+	/*
+     * The connection ID of the flow.
+     */
+	public final int connId;
+
+	/*
+     * The name of the received file.
+     */
+	private String fileName;
+
+	/*
+     * The address of the sender to which the ACKs are sent.
+     */
+	public final InetSocketAddress ackAddress;
+
+	/*
+     * The TCP connection over which the ACKs are sent, or null before the first ACK.
+     * It is not blocking, so a slow sender does not hold up the other flows.
+     */
+	public SocketChannel ackChannel;
+
+	/*
+     * The ACK frames which wait to be written to the TCP connection, or null before
+     * the first ACK.
+     */
+	public ByteBuffer ackOutput;
+
+	/*
+     * The time by which the TCP connection has to be made.
+     */
+	public long ackConnectDeadline;
+
+	/*
+     * The largest MSS which the receiver has accepted in its SYN ACK.
+     */
+	public int maxMss = BASE_MSS;
+
+	/*
+     * The MSS of the transfer, which is set by its first data packet, or 0.
+     */
+	private int mss;
+
+	/*
+     * The number of data packets in a block of the forward error correction, or 0
+     * if the sender sends no parity packets.
+     */
+	public int fecK;
+
+	/*
+     * The number of parity packets of a block.
+     */
+	public int fecM;
+
+	/*
+     * The number of packets which have been recovered from the parity packets.
+     */
+	public int recoveredPkts;
+
+	/*
+     * The number of data packets of the flow which have been received.
+     */
+	public int receivedPkts;
+
+	/*
+     * The number of data packets which had already been received.
+     */
+	public int duplicatePkts;
+
+	/*
+     * The number of data packets which have been received after a later one.
+     */
+	public int outOfOrderPkts;
+
+	/*
+     * The largest number of packets by which a packet has been received ahead of
+     * the expected one.
+     */
+	public int maxReorderDepth;
+
+	/*
+     * The largest reorder depth since the last sample of the statistics.
+     */
+	public int sampledReorderDepth;
+
+	/*
+     * The sum of the reorder depths of the packets received out of order.
+     */
+	private long reorderDepthSum;
+
+	/*
+     * The number of bytes of the file which have been received in order.
+     */
+	private long deliveredBytes;
+
+	/*
+     * The time when the flow started.
+     */
+	public final long startTime = System.currentTimeMillis();
+
+	/*
+     * The time when the next sample of the statistics of the flow is due.
+     */
+	public long nextSampleTime;
+
+	/*
+     * The time when the last packet of the flow was received.
+     */
+	public long lastTime;
+
+	/*
+     * The number of packets in order which have been received since the last ACK.
+     */
+	public int unackedPkts;
+
+	/*
+     * The time when the delayed ACK of the flow has to be sent.
+     */
+	public long ackDeadline;
+
+	/*
+     * Whether the ACK of the flow has to be sent at the end of the current pass.
+     */
+	public boolean isAckNow;
+
+	/*
+     * Whether the flow is in the queue of the flows which wait for their ACK.
+     */
+	public boolean isAckQueued;
+
+	/*
+     * The timestamp of the first packet received since the last ACK, which the
+     * next ACK echoes.
+     */
+	public int ackTimestamp;
+
+	/*
+     * The right edge of the window in the last ACK, which is the sequence number
+     * after the last one the sender may send.
+     */
+	public int advertisedEdge;
+
+	/*
+     * Whether the flow is in the queue of the flows whose packets are being written.
+     */
+	public boolean isWriting;
+
+	/*
+     * Whether the flow is in the queue of the disk writer.
+     */
+	public final AtomicBoolean isWriteQueued = new AtomicBoolean();
+
+	/*
+     * The channel of the received file, or null before the first packet in order.
+     * It is only used by the disk writer.
+     */
+	private FileChannel fileChannel;
+
+	/*
+     * The checkpoint of the received file, or null if the transfer cannot be resumed.
+     */
+	private Checkpoint checkpoint;
+
+	/*
+     * The sequence number from which the sender has resumed the transfer.
+     */
+	private int startSeqNum;
+
+	/*
+     * The packets buffered in the window, or null for the ones not received yet.
+     * The buffer of a sequence number is at index (sequence number & ringMask).
+     */
+	private ByteBuffer[] bufferedPkts;
+
+	/*
+     * The length of the data of each buffered packet.
+     */
+	private int[] payloadLengths;
+
+	/*
+     * The mask which maps a sequence number to its slot in the buffered packets.
+     */
+	private int ringMask;
+
+	/*
+     * The sequence number after the run of buffered packets which starts at each
+     * packet. It is only kept at the first packet of a run.
+     */
+	private int[] runEnds;
+
+	/*
+     * The first sequence number of the run of buffered packets which ends at each
+     * packet. It is only kept at the last packet of a run.
+     */
+	private int[] runStarts;
+
+	/*
+     * The starts of the runs of packets which have changed most recently, newest
+     * first, which are reported as the SACK blocks of the ACKs.
+     */
+	private int[] sackStarts = new int[AckFrame.MAX_SACK_BLOCKS];
+
+	/*
+     * The ends of the runs of packets which have changed most recently.
+     */
+	private int[] sackEnds = new int[AckFrame.MAX_SACK_BLOCKS];
+
+	/*
+     * The number of runs of packets which have changed most recently.
+     */
+	private int sackNum;
+
+	/*
+     * The groups of the forward error correction of the blocks in the window, or
+     * null for the ones not used yet. The groups of a block are at index
+     * (block / fecK % number of blocks) * fecM.
+     */
+	private FecGroup[] fecGroups;
+
+	/*
+     * The expected sequence number of a packet.
+     */
+	public int expectedSeqNum;
+
+	/*
+     * The sequence number up to which the packets are handed to the disk writer.
+     */
+	private volatile int readySeqNum;
+
+	/*
+     * The sequence number up to which the disk writer has written the packets.
+     */
+	private volatile int writtenSeqNum;
+
+	/*
+     * The sequence number up to which the buffers of the written packets are freed.
+     */
+	private int reclaimedSeqNum;
+
+	/*
+     * The error of the disk writer, or null.
+     */
+	public volatile IOException writeError;
+
+	/*
+     * Whether the flow has been closed, so the disk writer only closes its file.
+     */
+	private volatile boolean isClosed;
+
+	/*
+     * The highest sequence number which has been buffered.
+     */
+	private int highestSeqNum = -1;
+
+	/*
+     * The sequence number of the FIN packet, or -1 if it has not been received.
+     */
+	private int finSeqNum = -1;
+
+	public Flow(int connId, String fileName, InetSocketAddress ackAddress) {
+		this.connId = connId;
+		this.fileName = fileName;
+		this.ackAddress = ackAddress;
+	}
+
+	/**
+     * This method returns whether all the packets up to the FIN packet have been
+     * received in order.
+     */
+	public boolean isFinished() {
+		return this.finSeqNum != -1 && this.expectedSeqNum > this.finSeqNum;
+	}
+
+	/**
+     * This method returns whether all the packets up to the FIN packet have been
+     * written to the received file, and the file has reached the disk.
+     */
+	public boolean isWritten() {
+		return this.finSeqNum != -1 && this.writtenSeqNum > this.finSeqNum;
+	}
+
+	/**
+     * This method returns the ACK number of the flow, which is the expected sequence
+     * number, except that the FIN packet is only acknowledged once the file has
+     * been written.
+     */
+	public int getAckNum() {
+		return (isFinished() && !isWritten()) ? this.finSeqNum : this.expectedSeqNum;
+	}
+
+	/**
+     * This method makes the checkpoint of the received file from the length of the
+     * sent file, which the SYN gives. It returns whether the checkpoint has been
+     * checked, so that the SYN can be answered. Otherwise the disk writer checks it,
+     * and the SYN is answered when the sender sends it again.
+     */
+	public boolean openCheckpoint(long fileLength) {
+		if (this.checkpoint == null) {
+			this.checkpoint = new Checkpoint(this.fileName, fileLength);
+		}
+
+		return this.checkpoint.isLoaded();
+	}
+
+	/**
+     * This method returns the number of chunks which the received file holds, from
+     * which the transfer can be resumed.
+     */
+	public int getResumeChunks() {
+		return (this.checkpoint == null) ? 0 : this.checkpoint.getChunks();
+	}
+
+	/**
+     * This method returns the digest of the chunks which the received file holds.
+     */
+	public int getResumeDigest() {
+		return (this.checkpoint == null) ? 0 : this.checkpoint.getDigest();
+	}
+
+	/**
+     * This method returns whether the first data packet of the transfer has been
+     * accepted.
+     */
+	public boolean isStarted() {
+		return this.mss != 0;
+	}
+
+	/**
+     * This method starts the transfer from the first data packet, whose MSS is the
+     * one of the transfer, and whose ACK number field is the sequence number from
+     * which the sender has resumed. The sender may only resume within the chunks
+     * which the received file holds. It returns false if the packet is not valid.
+     */
+	public boolean start(int startSeqNum, int mss) {
+		long resumedBytes = (long)getResumeChunks() * Checkpoint.CHUNK_SIZE;
+
+		if (mss <= 0 || mss > this.maxMss || startSeqNum < 0 || (long)startSeqNum * mss > resumedBytes) {
+			return false;
+		}
+
+		this.mss = mss;
+		this.startSeqNum = startSeqNum;
+		this.expectedSeqNum = startSeqNum;
+		this.readySeqNum = startSeqNum;
+		this.writtenSeqNum = startSeqNum;
+		this.reclaimedSeqNum = startSeqNum;
+		this.highestSeqNum = startSeqNum - 1;
+		return true;
+	}
+
+	/**
+     * This method returns the offset in the received file from which the transfer
+     * has been resumed.
+     */
+	public long getStartOffset() {
+		return (long)this.startSeqNum * this.mss;
+	}
+
+	/**
+     * This method buffers a packet if it is within the window and has not been
+     * received. The window of the first packet sets the size of the reorder buffer,
+     * which is the smallest power of 2 which holds it, up to MAX_BUFFER_BYTES. It
+     * returns false if the packet is not buffered, so its buffer is still owned by
+     * the caller.
+     */
+	public boolean buffer(int seqNum, ByteBuffer pktBuff, int payloadLength, int mss, boolean isFin, int windowSize) {
+		if (isFinished()) {
+			return false;
+		}
+
+		//The offsets in the file only hold if every packet has the same MSS.
+		if (mss != this.mss || payloadLength > mss) {
+			return false;
+		}
+
+		if (this.bufferedPkts == null) {
+			int pkts = Math.min(Math.max(windowSize, 1), MAX_BUFFER_BYTES / (HEADER_LENGTH + mss));
+			int slots = Integer.highestOneBit(pkts * 2 - 1);
+
+			this.ringMask = slots - 1;
+			this.bufferedPkts = new ByteBuffer[slots];
+			this.payloadLengths = new int[slots];
+			this.runEnds = new int[slots];
+			this.runStarts = new int[slots];
+		}
+
+		if (!isInWindow(seqNum) || seqNum >= this.expectedSeqNum + windowSize ||
+				this.bufferedPkts[seqNum & this.ringMask] != null) {
+			if (seqNum < this.expectedSeqNum || isBuffered(seqNum)) {
+				this.duplicatePkts++;
+			}
+
+			return false;
+		}
+
+		this.bufferedPkts[seqNum & this.ringMask] = pktBuff;
+		this.payloadLengths[seqNum & this.ringMask] = payloadLength;
+
+		//A packet which arrives after a later one is out of order, by as many
+		//packets as it is behind the highest one.
+		if (seqNum < this.highestSeqNum) {
+			int depth = this.highestSeqNum - seqNum;
+
+			this.outOfOrderPkts++;
+			this.reorderDepthSum += depth;
+			this.maxReorderDepth = Math.max(this.maxReorderDepth, depth);
+			this.sampledReorderDepth = Math.max(this.sampledReorderDepth, depth);
+		}
+
+		this.highestSeqNum = Math.max(this.highestSeqNum, seqNum);
+
+		//A packet which is not the expected one joins the runs on either side of it.
+		if (seqNum > this.expectedSeqNum) {
+			addToRun(seqNum);
+		}
+
+		//If FIN = 17, the flow is finished once all the packets are received.
+		if (isFin) {
+			this.finSeqNum = seqNum;
+		}
+
+		return true;
+	}
+
+	/**
+     * This method joins a packet which has just been buffered after the expected one
+     * with the runs of buffered packets before and after it. The ends of a run are
+     * kept at its first and last packets, so they are found without a search. The
+     * run then becomes the first SACK block, and the blocks of the runs which it
+     * has joined are dropped.
+     */
+	private void addToRun(int seqNum) {
+		int start = isBuffered(seqNum - 1) ? this.runStarts[(seqNum - 1) & this.ringMask] : seqNum;
+		int end = isBuffered(seqNum + 1) ? this.runEnds[(seqNum + 1) & this.ringMask] : seqNum + 1;
+
+		this.runEnds[start & this.ringMask] = end;
+		this.runStarts[(end - 1) & this.ringMask] = start;
+
+		int n = 0;
+
+		for (int i = 0; i < this.sackNum; i++) {
+			if (this.sackEnds[i] < start || this.sackStarts[i] > end) {
+				this.sackStarts[n] = this.sackStarts[i];
+				this.sackEnds[n] = this.sackEnds[i];
+				n++;
+			}
+		}
+
+		this.sackNum = Math.min(n + 1, AckFrame.MAX_SACK_BLOCKS);
+
+		for (int i = this.sackNum - 1; i > 0; i--) {
+			this.sackStarts[i] = this.sackStarts[i - 1];
+			this.sackEnds[i] = this.sackEnds[i - 1];
+		}
+
+		this.sackStarts[0] = start;
+		this.sackEnds[0] = end;
+	}
+
+	/**
+     * This method returns the number of bytes of the file which have been received
+     * in order.
+     */
+	public long getDeliveredBytes() {
+		return this.deliveredBytes;
+	}
+
+	/**
+     * This method returns the average reorder depth of the packets received out of
+     * order.
+     */
+	public double getAvgReorderDepth() {
+		return (this.outOfOrderPkts == 0) ? 0 : (double)this.reorderDepthSum / this.outOfOrderPkts;
+	}
+
+	/**
+     * This method returns the number of packets from the expected one to the highest
+     * one which has been received, which is how far the packets are out of order.
+     */
+	public int getReorderSpan() {
+		return Math.max(this.highestSeqNum + 1 - this.expectedSeqNum, 0);
+	}
+
+	/**
+     * This method returns the number of packets which the reorder buffer holds, which
+     * is the most packets that the disk writer writes at once.
+     */
+	public int getBufferSize() {
+		return (this.bufferedPkts == null) ? 0 : this.bufferedPkts.length;
+	}
+
+	/**
+     * This method returns the number of packets from the expected one which the
+     * reorder buffer can still take, which is the window the receiver advertises.
+     */
+	public int getWindow() {
+		return (this.bufferedPkts == null) ? 0 : this.reclaimedSeqNum + this.bufferedPkts.length - this.expectedSeqNum;
+	}
+
+	/**
+     * This method returns the number of bits by which the advertised window is
+     * shifted, so that the whole reorder buffer fits in the 16-bit window field.
+     */
+	public int getWindowScale() {
+		int scale = 0;
+
+		while ((getBufferSize() >> scale) > 0xFFFF) {
+			scale++;
+		}
+
+		return scale;
+	}
+
+	/**
+     * This method returns whether a sequence number is within the reorder buffer.
+     */
+	private boolean isInWindow(int seqNum) {
+		return seqNum >= this.expectedSeqNum && seqNum < this.reclaimedSeqNum + this.bufferedPkts.length;
+	}
+
+	/**
+     * This method returns whether a packet is in the reorder buffer.
+     */
+	private boolean isBuffered(int seqNum) {
+		return this.bufferedPkts != null && isInWindow(seqNum) && this.bufferedPkts[seqNum & this.ringMask] != null;
+	}
+
+	/**
+     * This method returns the group of the forward error correction of a block, or
+     * null if the block is older than the one whose group takes its place. The
+     * groups cover two blocks more than the reorder buffer, so a block is only
+     * replaced once all its packets have been written.
+     */
+	private FecGroup getFecGroup(int block, int j) {
+		if (this.fecGroups == null) {
+			this.fecGroups = new FecGroup[(this.bufferedPkts.length / this.fecK + 2) * this.fecM];
+		}
+
+		int blocks = this.fecGroups.length / this.fecM;
+		int i = (block / this.fecK % blocks) * this.fecM + j;
+
+		if (this.fecGroups[i] == null) {
+			this.fecGroups[i] = new FecGroup(this.mss);
+		}
+
+		FecGroup group = this.fecGroups[i];
+
+		if (group.block > block) {
+			return null;
+		}
+
+		if (group.block != block) {
+			group.reset(block);
+		}
+
+		return group;
+	}
+
+	/**
+     * This method adds a data packet which has just been buffered to its group of
+     * the forward error correction. It returns the sequence number of a packet
+     * which can now be recovered, or -1.
+     */
+	public int addData(int seqNum, ByteBuffer pktBuff, int payloadLength) {
+		if (this.fecK == 0) {
+			return -1;
+		}
+
+		int block = seqNum - seqNum % this.fecK;
+		FecGroup group = getFecGroup(block, (seqNum - block) % this.fecM);
+
+		if (group == null) {
+			return -1;
+		}
+
+		group.add(pktBuff, HEADER_LENGTH, payloadLength);
+		group.count++;
+		group.lengthXor ^= payloadLength;
+		group.seqXor ^= seqNum;
+		return getLostSeqNum(group);
+	}
+
+	/**
+     * This method adds a parity packet to its group of the forward error correction.
+     * Its sequence number is the first one of its block, and its FEC field holds the
+     * index of its group, the number of data packets in the block and the XOR of
+     * their payload lengths. It returns the sequence number of a packet which can
+     * now be recovered, or -1.
+     */
+	public int addParity(int seqNum, int fecField, ByteBuffer pktBuff, int payloadLength, boolean isFin) {
+		int j = fecField >>> 24;
+		int n = (fecField >>> 16) & 0xFF;
+
+		//A parity packet is of no use before the reorder buffer is made, or once its
+		//whole block has been received in order, and is dropped beyond the window.
+		if (this.fecK == 0 || this.bufferedPkts == null || seqNum < 0 || seqNum % this.fecK != 0 ||
+				j >= this.fecM || n == 0 || n > this.fecK || seqNum + n <= this.expectedSeqNum ||
+				seqNum >= this.reclaimedSeqNum + this.bufferedPkts.length || payloadLength > this.mss) {
+			return -1;
+		}
+
+		FecGroup group = getFecGroup(seqNum, j);
+
+		if (group == null || group.hasParity) {
+			return -1;
+		}
+
+		group.add(pktBuff, HEADER_LENGTH, payloadLength);
+		group.hasParity = true;
+		group.size = (n - j + this.fecM - 1) / this.fecM;
+		group.lengthXor ^= fecField & 0xFFFF;
+
+		//The XOR of the sequence numbers of the group leaves the missing one.
+		for (int i = seqNum + j; i < seqNum + n; i += this.fecM) {
+			group.seqXor ^= i;
+		}
+
+		if (isFin) {
+			group.finSeqNum = seqNum + n - 1;
+		}
+
+		return getLostSeqNum(group);
+	}
+
+	/**
+     * This method returns the packet which a group can recover, if it has not been
+     * received since.
+     */
+	private int getLostSeqNum(FecGroup group) {
+		int seqNum = group.getLostSeqNum();
+
+		return (seqNum != -1 && seqNum >= this.expectedSeqNum && !isBuffered(seqNum)) ? seqNum : -1;
+	}
+
+	/**
+     * This method rebuilds a lost packet from its group of the forward error
+     * correction in a free packet buffer, and buffers it as if it had been received.
+     * It returns false if the packet is not buffered, so the buffer is still owned
+     * by the caller.
+     */
+	public boolean recover(int seqNum, ByteBuffer pktBuff) {
+		int block = seqNum - seqNum % this.fecK;
+		FecGroup group = getFecGroup(block, (seqNum - block) % this.fecM);
+
+		if (group == null || group.getLostSeqNum() != seqNum || group.lengthXor > this.mss) {
+			return false;
+		}
+
+		group.write(pktBuff, HEADER_LENGTH, group.lengthXor);
+		group.count++;
+
+		if (!buffer(seqNum, pktBuff, group.lengthXor, this.mss, seqNum == group.finSeqNum, this.bufferedPkts.length)) {
+			return false;
+		}
+
+		this.recoveredPkts++;
+		return true;
+	}
+
+	/**
+     * This method moves the expected sequence number past the run of packets which
+     * starts at it, and hands them to the disk writer. It returns false if the
+     * expected packet has not been received.
+     */
+	public boolean advance() {
+		if (!isBuffered(this.expectedSeqNum)) {
+			return false;
+		}
+
+		while (isBuffered(this.expectedSeqNum)) {
+			this.deliveredBytes += this.payloadLengths[this.expectedSeqNum & this.ringMask];
+			this.expectedSeqNum++;
+		}
+
+		//The runs which are now in order are no longer SACK blocks.
+		int n = 0;
+
+		for (int i = 0; i < this.sackNum; i++) {
+			if (this.sackStarts[i] >= this.expectedSeqNum) {
+				this.sackStarts[n] = this.sackStarts[i];
+				this.sackEnds[n] = this.sackEnds[i];
+				n++;
+			}
+		}
+
+		this.sackNum = n;
+
+		//The volatile write publishes the packets to the disk writer.
+		this.readySeqNum = this.expectedSeqNum;
+		return true;
+	}
+
+	/**
+     * This method returns whether the flow has packets in order whose buffers have
+     * not been freed, because the disk writer has not written them yet.
+     */
+	public boolean hasPendingWrites() {
+		return this.reclaimedSeqNum < this.readySeqNum;
+	}
+
+	/**
+     * This method frees the buffers of the packets which the disk writer has written,
+     * so that the reorder buffer can take new packets. Once the whole file has been
+     * written, the reorder buffer and the groups of the forward error correction
+     * are dropped.
+     */
+	public void reclaim(ArrayDeque<ByteBuffer> freeBuffs) {
+		int written = this.writtenSeqNum;
+
+		for (; this.reclaimedSeqNum < written; this.reclaimedSeqNum++) {
+			int slot = this.reclaimedSeqNum & this.ringMask;
+
+			freeBuffs.add(this.bufferedPkts[slot]);
+			this.bufferedPkts[slot] = null;
+		}
+
+		if (isWritten()) {
+			this.bufferedPkts = null;
+			this.payloadLengths = null;
+			this.fecGroups = null;
+		}
+	}
+
+	/**
+     * This method is called by the disk writer to write the packets which have been
+     * handed to it. Each run is written with a single gathering write at the offset
+     * of its first packet in the file, and is then added to the checkpoint. The
+     * received file is made when the first packet is written, so a packet which
+     * arrives after its flow has been removed does not empty the file again. A
+     * resumed transfer keeps the file before its first packet. An error is kept
+     * for the receiver.
+     */
+	public void write(ByteBuffer[] writeBuffs) {
+		try {
+			if (this.isClosed) {
+				closeFile();
+				return;
+			}
+
+			if (this.checkpoint != null && !this.checkpoint.isLoaded()) {
+				this.checkpoint.load(this.fileName);
+			}
+
+			int ready = this.readySeqNum;
+			int written = this.writtenSeqNum;
+
+			while (written < ready) {
+				int count = 0;
+
+				for (; written + count < ready && count < writeBuffs.length; count++) {
+					int slot = (written + count) & this.ringMask;
+					ByteBuffer buff = this.bufferedPkts[slot];
+
+					buff.limit(HEADER_LENGTH + this.payloadLengths[slot]);
+					buff.position(HEADER_LENGTH);
+					writeBuffs[count] = buff;
+				}
+
+				if (this.fileChannel == null) {
+					this.fileChannel = new RandomAccessFile(this.fileName, "rw").getChannel();
+					this.fileChannel.truncate(getStartOffset());
+
+					if (this.checkpoint != null) {
+						this.checkpoint.open(getStartOffset());
+					}
+				}
+
+				//Every packet but the last one holds MSS bytes, so the offset follows
+				//from the sequence number.
+				this.fileChannel.position((long)written * this.mss);
+
+				while (writeBuffs[count - 1].hasRemaining()) {
+					this.fileChannel.write(writeBuffs, 0, count);
+				}
+
+				for (int i = 0; i < count; i++) {
+					if (this.checkpoint != null) {
+						writeBuffs[i].position(HEADER_LENGTH);
+						this.checkpoint.add(writeBuffs[i]);
+					}
+
+					writeBuffs[i] = null;
+				}
+
+				written += count;
+
+				//The file only needs to reach the disk once all of it has been written,
+				//and then needs no checkpoint.
+				if (this.finSeqNum != -1 && written > this.finSeqNum) {
+					this.fileChannel.force(true);
+					closeFile();
+
+					if (this.checkpoint != null) {
+						this.checkpoint.delete();
+					}
+				}
+
+				//The volatile write hands the buffers back to the receiver.
+				this.writtenSeqNum = written;
+			}
+		}
+		catch (IOException e) {
+			this.writeError = e;
+		}
+	}
+
+	/**
+     * This method closes the received file and its checkpoint, which is only done by
+     * the disk writer.
+     */
+	private void closeFile() throws IOException {
+		if (this.fileChannel != null) {
+			this.fileChannel.close();
+			this.fileChannel = null;
+		}
+
+		if (this.checkpoint != null) {
+			this.checkpoint.close();
+		}
+	}
+
+	/**
+     * This method sets the SACK blocks of an ACK. As in RFC 2018, the first block is
+     * the run which has changed most recently, which holds the packet just received
+     * if it is out of order, and the others are the runs which changed before it.
+     * The FIN packet is left out, since it is only acknowledged once the file has
+     * been written.
+     */
+	public void getSackBlocks(AckFrame ack) {
+		ack.sackNum = 0;
+
+		for (int i = 0; i < this.sackNum; i++) {
+			int end = (this.finSeqNum != -1) ? Math.min(this.sackEnds[i], this.finSeqNum) : this.sackEnds[i];
+
+			if (end > this.sackStarts[i]) {
+				ack.addSackBlock(this.sackStarts[i], end);
+			}
+		}
+	}
+
+	/**
+     * This method closes the flow, and frees the buffers of the packets which it
+     * still holds. The packets which the disk writer has not written are left to it,
+     * and the caller has the disk writer close the file. A flow which is not
+     * finished leaves a partial file.
+     */
+	public void close(ArrayDeque<ByteBuffer> freeBuffs) throws IOException {
+		this.isClosed = true;
+		this.fecGroups = null;
+
+		if (this.bufferedPkts != null) {
+			reclaim(freeBuffs);
+		}
+
+		if (this.bufferedPkts != null) {
+			for (int i = this.readySeqNum; i < this.reclaimedSeqNum + this.bufferedPkts.length; i++) {
+				if (this.bufferedPkts[i & this.ringMask] != null) {
+					freeBuffs.add(this.bufferedPkts[i & this.ringMask]);
+					this.bufferedPkts[i & this.ringMask] = null;
+				}
+			}
+		}
+
+		//The ACKs which are still queued, such as the one of the FIN, are left to the
+		//receiver, which closes the connection once they have been written.
+		if (this.ackChannel != null && !hasQueuedAcks()) {
+			this.ackChannel.close();
+			this.ackChannel = null;
+		}
+	}
+
+	/**
+     * This method returns whether the flow has been closed.
+     */
+	public boolean isClosed() {
+		return this.isClosed;
+	}
+
+	/**
+     * This method returns whether ACK frames wait to be written to the sender.
+     */
+	public boolean hasQueuedAcks() {
+		return this.ackOutput != null && this.ackOutput.position() > 0;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+
+/**
+ * This class implements the table of the flows at the receiver, indexed by their
+ * connection ID. It is a hash table with open addressing and linear probing, so a
+ * lookup allocates nothing (there is no Integer key) and follows no list of nodes.
+ * The table doubles when it is half full, and a removed flow is filled by moving
+ * the flows after it back, so there are no deleted markers to slow down lookups.
+ */
+public class FlowTable {
+	/*
+     * The flows of the table, or null for the empty slots.
+     */
+	private Flow[] flows = new Flow[16];
+
+	/*
+     * The number of flows in the table.
+     */
+	private int size;
+
+	/**
+     * This method returns the number of flows in the table.
+     */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+     * This method returns the number of slots in the table, to iterate on it with
+     * getSlot().
+     */
+	public int capacity() {
+		return this.flows.length;
+	}
+
+	/**
+     * This method returns the flow in a slot of the table, or null.
+     */
+	public Flow getSlot(int i) {
+		return this.flows[i];
+	}
+
+	/**
+     * This method returns the slot where the search of a connection ID starts. The
+     * connection IDs are mixed, so that close IDs do not fill the same slots.
+     */
+	private int getHome(int connId) {
+		int hash = connId * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (this.flows.length - 1);
+	}
+
+	/**
+     * This method returns the flow of a connection ID, or null.
+     */
+	public Flow get(int connId) {
+		int mask = this.flows.length - 1;
+
+		for (int i = getHome(connId); this.flows[i] != null; i = (i + 1) & mask) {
+			if (this.flows[i].connId == connId) {
+				return this.flows[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+     * This method adds a flow whose connection ID is not in the table.
+     */
+	public void put(Flow flow) {
+		if ((this.size + 1) * 2 > this.flows.length) {
+			Flow[] oldFlows = this.flows;
+
+			this.flows = new Flow[oldFlows.length * 2];
+
+			for (int i = 0; i < oldFlows.length; i++) {
+				if (oldFlows[i] != null) {
+					insert(oldFlows[i]);
+				}
+			}
+		}
+
+		insert(flow);
+		this.size++;
+	}
+
+	/**
+     * This method puts a flow in the first empty slot from its home slot.
+     */
+	private void insert(Flow flow) {
+		int mask = this.flows.length - 1;
+		int i = getHome(flow.connId);
+
+		while (this.flows[i] != null) {
+			i = (i + 1) & mask;
+		}
+
+		this.flows[i] = flow;
+	}
+
+	/**
+     * This method removes the flow of a connection ID. Each flow after it in the same
+     * run of slots is moved back into the hole, unless its home slot is between the
+     * hole and itself, so every flow can still be found from its home slot.
+     */
+	public void remove(int connId) {
+		int mask = this.flows.length - 1;
+		int hole = getHome(connId);
+
+		while (this.flows[hole] != null && this.flows[hole].connId != connId) {
+			hole = (hole + 1) & mask;
+		}
+
+		if (this.flows[hole] == null) {
+			return;
+		}
+
+		this.flows[hole] = null;
+		this.size--;
+
+		for (int i = (hole + 1) & mask; this.flows[i] != null; i = (i + 1) & mask) {
+			int home = getHome(this.flows[i].connId);
+
+			//The flow may move back if its home slot is not after the hole.
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				this.flows[hole] = this.flows[i];
+				this.flows[i] = null;
+				hole = i;
+			}
+		}
+	}
+}
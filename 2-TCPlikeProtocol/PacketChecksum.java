@@ -0,0 +1,167 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * This class computes the checksum of a packet. The sender chooses the type of the
+ * checksum, and writes it in the unused bits of the header length byte, so that the
+ * receiver verifies each packet with the same type.
+ *
+ * The Internet checksum (RFC 1071) is the one's complement of the one's complement
+ * sum of the 16-bit words of the packet. It is computed over 64-bit words, which
+ * gives the same result since the sum only has to be folded down to 16 bits at the
+ * end. CRC32C detects more corruptions, and is computed by the JDK with the CRC32
+ * instructions of the CPU. It is only available from Java 9.
+ */
+public class PacketChecksum {
+	/*
+     * The type of the 16-bit Internet checksum.
+     */
+	public static final int INTERNET = 0;
+
+	/*
+     * The type of the 32-bit CRC32C checksum.
+     */
+	public static final int CRC32C = 1;
+
+	/*
+     * The offset of the checksum field in the header. A CRC32C checksum takes the
+     * 4 bytes from it, including the urgent data pointer field.
+     */
+	public static final int CHECKSUM_OFFSET = 16;
+
+	/*
+     * The CRC32C class of the JDK, or null if it is not available.
+     */
+	private static final Class<?> CRC32C_CLASS;
+
+	/*
+     * The update method of CRC32C for a ByteBuffer, which reads a direct buffer
+     * without copying it, or null if it is not available.
+     */
+	private static final MethodHandle UPDATE;
+
+	static {
+		Class<?> crc32cClass = null;
+		MethodHandle update = null;
+
+		//The class of the JDK is loaded by name, so that the rest of the application
+		//still runs on Java 7.
+		try {
+			crc32cClass = Class.forName("java.util.zip.CRC32C");
+			update = MethodHandles.publicLookup().findVirtual(crc32cClass, "update",
+					MethodType.methodType(void.class, ByteBuffer.class));
+			update = update.asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+		}
+		catch (ReflectiveOperationException e) {
+			crc32cClass = null;
+			update = null;
+		}
+
+		CRC32C_CLASS = crc32cClass;
+		UPDATE = update;
+	}
+
+	/*
+     * The CRC32C of the JDK, which is reused for every packet.
+     */
+	private Checksum crc32c;
+
+	/**
+     * This method makes the CRC32C checksum.
+     */
+	public PacketChecksum() {
+		if (CRC32C_CLASS == null) {
+			throw new IllegalStateException("CRC32C needs Java 9 or later");
+		}
+
+		try {
+			this.crc32c = (Checksum)CRC32C_CLASS.getConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("CRC32C needs Java 9 or later");
+		}
+	}
+
+	/**
+     * This method returns the Internet checksum of the first length bytes of a
+     * packet. It is 0 for a packet whose checksum field holds its checksum.
+     */
+	public static short internet(ByteBuffer pkt, int length) {
+		long sum = 0;
+		int i = 0;
+
+		//Add the 64-bit words. A carry out of the top bit is added back at the bottom.
+		for (; i + 8 <= length; i += 8) {
+			long word = pkt.getLong(i);
+			sum += word;
+
+			if ((sum ^ Long.MIN_VALUE) < (word ^ Long.MIN_VALUE)) {
+				sum++;
+			}
+		}
+
+		//The last bytes are added as a word padded with 0.
+		if (i < length) {
+			long word = 0;
+
+			for (int shift = 56; i < length; i++, shift -= 8) {
+				word |= (pkt.get(i) & 0xFFL) << shift;
+			}
+
+			sum += word;
+
+			if ((sum ^ Long.MIN_VALUE) < (word ^ Long.MIN_VALUE)) {
+				sum++;
+			}
+		}
+
+		//Fold the sum to 16 bits, adding the carries back each time.
+		sum = (sum >>> 32) + (sum & 0xFFFFFFFFL);
+		sum = (sum >>> 32) + (sum & 0xFFFFFFFFL);
+		sum = (sum >>> 16) + (sum & 0xFFFF);
+		sum = (sum >>> 16) + (sum & 0xFFFF);
+		return (short)~sum;
+	}
+
+	/**
+     * This method returns the CRC32C checksum of the first length bytes of a packet,
+     * leaving out the 4 bytes of the checksum field. The position and limit of the
+     * packet are the same when it returns.
+     */
+	public int crc32c(ByteBuffer pkt, int length) {
+		int position = pkt.position();
+		int limit = pkt.limit();
+
+		this.crc32c.reset();
+		pkt.limit(CHECKSUM_OFFSET);
+		pkt.position(0);
+		update(pkt);
+		pkt.limit(length);
+		pkt.position(CHECKSUM_OFFSET + 4);
+		update(pkt);
+		pkt.limit(limit);
+		pkt.position(position);
+		return (int)this.crc32c.getValue();
+	}
+
+	/**
+     * This method adds the remaining bytes of a buffer to the CRC32C checksum.
+     */
+	private void update(ByteBuffer buff) {
+		try {
+			UPDATE.invokeExact(this.crc32c, buff);
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
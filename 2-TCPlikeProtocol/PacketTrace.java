@@ -0,0 +1,379 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class implements the trace of the packets and ACKs which the sender or the
+ * receiver sends and receives, which replaces the text log file. Each of them is
+ * a fixed-size binary record, which is put in a staging ring in memory, so that
+ * tracing a packet takes no system call and allocates nothing. A background thread
+ * copies the records into the trace file, which is a ring of RING_RECORDS records
+ * mapped into memory, so the trace of a long transfer keeps its last records. If
+ * the thread falls behind, the records which do not fit in the staging ring are
+ * dropped and counted, so the sender is never held up by its trace. TraceReader
+ * renders a trace file as the text log.
+ *
+ * The log file argument may end with ":N" to keep only one record in N. The SYN
+ * and FIN packets and their ACKs are always kept.
+ *
+ * The trace file starts with a header of HEADER_SIZE bytes:
+ *
+ * byte[0] - byte[3]: magic number
+ * byte[4] - byte[7]: record size
+ * byte[8] - byte[11]: number of records in the ring
+ * byte[12] - byte[15]: sampling interval
+ * byte[16] - byte[23]: number of records written, the last ones being in the ring
+ * byte[24] - byte[31]: number of records dropped
+ * byte[32]: role (SENDER, RECEIVER or DAEMON)
+ * byte[33] - : local and remote address, each a 16-bit length and UTF-8 bytes
+ *
+ * Each record is RECORD_SIZE bytes:
+ *
+ * byte[0] - byte[7]: time in microseconds since the epoch
+ * byte[8]: kind (bit 0 = ACK frame, bit 1 = sent by this side)
+ * byte[9]: flag field
+ * byte[10]: number of SACK blocks of an ACK frame
+ * byte[11]: window scale of an ACK frame
+ * byte[12] - byte[15]: source and destination port
+ * byte[16] - byte[19]: sequence number, or the resumed chunks of a SYN ACK
+ * byte[20] - byte[23]: ACK number
+ * byte[24] - byte[27]: MSS (16 bits) and payload length or window size (16 bits)
+ * byte[28] - byte[31]: connection ID
+ * byte[32] - byte[35]: estimated RTT of the sender in microseconds
+ * byte[36] - byte[39]: congestion window of the sender in packets
+ * byte[40] - byte[63]: SACK blocks of an ACK frame
+ */
+public class PacketTrace extends Thread {
+	/*
+     * The magic number at the start of a trace file.
+     */
+	public static final int MAGIC = 0x54524345;
+
+	/*
+     * The size of the header of a trace file in bytes.
+     */
+	public static final int HEADER_SIZE = 256;
+
+	/*
+     * The size of a record in bytes.
+     */
+	public static final int RECORD_SIZE = 64;
+
+	/*
+     * The number of records in the ring of a trace file.
+     */
+	public static final int RING_RECORDS = 1 << 20;
+
+	/*
+     * The offset in the header of the number of records written.
+     */
+	public static final int COUNT_OFFSET = 16;
+
+	/*
+     * The offset in the header of the number of records dropped.
+     */
+	public static final int DROPPED_OFFSET = 24;
+
+	/*
+     * The offset in the header of the role, which the addresses follow.
+     */
+	public static final int ROLE_OFFSET = 32;
+
+	/*
+     * The role of a trace written by the sender.
+     */
+	public static final int SENDER = 0;
+
+	/*
+     * The role of a trace written by a receiver which is not a daemon.
+     */
+	public static final int RECEIVER = 1;
+
+	/*
+     * The role of a trace written by a daemon.
+     */
+	public static final int DAEMON = 2;
+
+	/*
+     * The bit of the kind of a record which is an ACK frame.
+     */
+	public static final int ACK_FRAME = 1;
+
+	/*
+     * The bit of the kind of a record which has been sent by this side.
+     */
+	public static final int SENT = 2;
+
+	/*
+     * The number of records in the staging ring.
+     */
+	private static final int STAGE_RECORDS = 4096;
+
+	/*
+     * The time in nanoseconds for which the background thread waits when there is
+     * no record to copy.
+     */
+	private static final long IDLE_WAIT = 1000000;
+
+	/*
+     * The ring in memory in which the records are staged.
+     */
+	private ByteBuffer stage = ByteBuffer.allocateDirect(STAGE_RECORDS * RECORD_SIZE);
+
+	/*
+     * The trace file mapped into memory.
+     */
+	private MappedByteBuffer ring;
+
+	/*
+     * The interval at which the records are kept.
+     */
+	private int sample;
+
+	/*
+     * The number of records skipped since the last one which was kept.
+     */
+	private int skipped;
+
+	/*
+     * The number of records which have been staged, which only the traced thread
+     * writes.
+     */
+	private long staged;
+
+	/*
+     * The number of records which have been staged, published to the background
+     * thread.
+     */
+	private volatile long head;
+
+	/*
+     * The number of records which have been copied into the trace file, published
+     * to the traced thread so that it can reuse their slots.
+     */
+	private volatile long tail;
+
+	/*
+     * The number of records which have been dropped because the staging ring was full.
+     */
+	private long dropped;
+
+	/*
+     * Whether the trace is closed, so the background thread stops once it has
+     * copied the staged records.
+     */
+	private volatile boolean isClosed;
+
+	/*
+     * The time in microseconds since the epoch when the trace started.
+     */
+	private long startMicros = System.currentTimeMillis() * 1000;
+
+	/*
+     * The time in nanoseconds of the JVM when the trace started, from which the
+     * times of the records are taken, so that they do not jump with the clock.
+     */
+	private long startNanos = System.nanoTime();
+
+	/**
+     * This method opens the trace file of a log file argument, which is its name,
+     * optionally followed by ":N" to keep one record in N, and starts the background
+     * thread.
+     */
+	public static PacketTrace open(String logArg, int role, String localAddr, String remoteAddr) throws IOException {
+		String fileName = logArg;
+		int sample = 1;
+		int colon = logArg.lastIndexOf(':');
+
+		if (colon > 0 && logArg.substring(colon + 1).matches("[0-9]+")) {
+			fileName = logArg.substring(0, colon);
+			sample = Math.max(Integer.parseInt(logArg.substring(colon + 1)), 1);
+		}
+
+		PacketTrace trace = new PacketTrace(fileName, sample, role, localAddr, remoteAddr);
+		trace.start();
+		return trace;
+	}
+
+	public PacketTrace(String fileName, int sample, int role, String localAddr, String remoteAddr) throws IOException {
+		this.sample = sample;
+		setDaemon(true);
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+
+		try {
+			file.setLength(0);
+			this.ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)RING_RECORDS * RECORD_SIZE);
+		}
+		finally {
+			//The mapping stays valid once the file is closed.
+			file.close();
+		}
+
+		this.ring.putInt(0, MAGIC);
+		this.ring.putInt(4, RECORD_SIZE);
+		this.ring.putInt(8, RING_RECORDS);
+		this.ring.putInt(12, sample);
+		this.ring.put(ROLE_OFFSET, (byte)role);
+		this.ring.position(ROLE_OFFSET + 1);
+		putString(localAddr);
+		putString(remoteAddr);
+	}
+
+	/**
+     * This method writes a string in the header, as a 16-bit length and its UTF-8
+     * bytes, cut so that the header holds both addresses.
+     */
+	private void putString(String s) {
+		byte[] bytes = s.getBytes(Charset.forName("UTF-8"));
+		int length = Math.min(bytes.length, (HEADER_SIZE - ROLE_OFFSET - 5) / 2);
+
+		this.ring.putShort((short)length);
+		this.ring.put(bytes, 0, length);
+	}
+
+	/**
+     * This method traces a packet, from the fields of its header.
+     */
+	public void addPacket(boolean isSent, short srcPort, short destPort, int seqNum, int ackNum, byte flags,
+			int payloadLength, int mss, int connId, int rtt, int cwnd) {
+		int offset = stageRecord(isSent ? SENT : 0, flags);
+
+		if (offset < 0) {
+			return;
+		}
+
+		this.stage.putShort(offset + 12, srcPort);
+		this.stage.putShort(offset + 14, destPort);
+		this.stage.putInt(offset + 16, seqNum);
+		this.stage.putInt(offset + 20, ackNum);
+		this.stage.putInt(offset + 24, (mss << 16) | (payloadLength & 0xFFFF));
+		this.stage.putInt(offset + 28, connId);
+		this.stage.putInt(offset + 32, rtt);
+		this.stage.putInt(offset + 36, cwnd);
+		this.stage.put(offset + 10, (byte)0);
+		this.stage.put(offset + 11, (byte)0);
+		publish();
+	}
+
+	/**
+     * This method traces an ACK frame.
+     */
+	public void addAck(boolean isSent, int srcPort, int destPort, AckFrame ack, int connId, int rtt, int cwnd) {
+		int offset = stageRecord(ACK_FRAME | (isSent ? SENT : 0), ack.flags);
+
+		if (offset < 0) {
+			return;
+		}
+
+		this.stage.put(offset + 10, (byte)ack.sackNum);
+		this.stage.put(offset + 11, (byte)ack.windowScale);
+		this.stage.putShort(offset + 12, (short)srcPort);
+		this.stage.putShort(offset + 14, (short)destPort);
+		this.stage.putInt(offset + 16, ack.resumeChunks);
+		this.stage.putInt(offset + 20, ack.ackNum);
+		this.stage.putInt(offset + 24, (ack.mss << 16) | (ack.windowSize & 0xFFFF));
+		this.stage.putInt(offset + 28, connId);
+		this.stage.putInt(offset + 32, rtt);
+		this.stage.putInt(offset + 36, cwnd);
+
+		for (int i = 0; i < AckFrame.MAX_SACK_BLOCKS; i++) {
+			this.stage.putInt(offset + 40 + i * 8, (i < ack.sackNum) ? ack.sackStarts[i] : 0);
+			this.stage.putInt(offset + 44 + i * 8, (i < ack.sackNum) ? ack.sackEnds[i] : 0);
+		}
+
+		publish();
+	}
+
+	/**
+     * This method takes the slot of the next record in the staging ring, and writes
+     * its time, kind and flags. It returns the offset of the slot, or -1 if the
+     * record is skipped by the sampling, or dropped because the ring is full.
+     */
+	private int stageRecord(int kind, byte flags) {
+		//The SYN and FIN packets and their ACKs are always kept.
+		if ((flags & 3) == 0 && ++this.skipped < this.sample) {
+			return -1;
+		}
+
+		this.skipped = 0;
+
+		if (this.staged - this.tail >= STAGE_RECORDS) {
+			this.dropped++;
+			return -1;
+		}
+
+		int offset = (int)(this.staged % STAGE_RECORDS) * RECORD_SIZE;
+
+		this.stage.putLong(offset, this.startMicros + (System.nanoTime() - this.startNanos) / 1000);
+		this.stage.put(offset + 8, (byte)kind);
+		this.stage.put(offset + 9, flags);
+		return offset;
+	}
+
+	/**
+     * This method hands the staged record to the background thread. The volatile
+     * write publishes its fields.
+     */
+	private void publish() {
+		this.staged++;
+		this.head = this.staged;
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer src = this.stage.duplicate();
+		ByteBuffer dst = this.ring.duplicate();
+		long copied = 0;
+
+		while (true) {
+			//The flag is read before the head, so the records staged before the trace
+			//was closed are all copied.
+			boolean isClosed = this.isClosed;
+			long head = this.head;
+
+			if (copied == head && isClosed) {
+				return;
+			}
+
+			if (copied == head) {
+				LockSupport.parkNanos(IDLE_WAIT);
+				continue;
+			}
+
+			for (; copied < head; copied++) {
+				int offset = (int)(copied % STAGE_RECORDS) * RECORD_SIZE;
+
+				src.limit(offset + RECORD_SIZE);
+				src.position(offset);
+				dst.position(HEADER_SIZE + (int)(copied % RING_RECORDS) * RECORD_SIZE);
+				dst.put(src);
+			}
+
+			//The count is written after the records, so a reader of the file of a
+			//running program only sees whole records.
+			this.ring.putLong(COUNT_OFFSET, copied);
+			this.tail = copied;
+		}
+	}
+
+	/**
+     * This method closes the trace once the staged records have been copied into
+     * the trace file, and writes the number of dropped records. The file is not
+     * forced, since the mapped pages reach it when the program exits.
+     */
+	public void close() throws InterruptedException {
+		this.isClosed = true;
+		join();
+		this.ring.putLong(DROPPED_OFFSET, this.dropped);
+	}
+}
@@ -6,13 +6,31 @@
  */
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Date;
 
 /**
  * This class implements the receiver which receives TCP-like packets from the sender
  * and then sends correspondent ACK to the sender. If it receives a corrupted packet,
- * it drops the packet.
+ * it drops the packet. The packets received out of order within the window are
+ * buffered, and each ACK reports them in SACK blocks beyond the cumulative ACK.
+ * If the sender adds parity packets, a lost packet is rebuilt from the others of
+ * its group without being retransmitted.
+ * The packets which are in order are written to the received file at the offset
+ * of their sequence number by a disk writer thread, and each ACK advertises the
+ * free space of the reorder buffer, so a slow disk slows the sender down.
+ * The written part of the file is recorded in a checkpoint, so that a transfer
+ * which has been cut off resumes where it stopped.
+ *
+ * As a daemon, the receiver keeps running and receives many transfers at the same
+ * time on its port. The packets are sorted into flows by the connection ID in their
+ * header, and all the flows are served by a single thread.
  */
 public class Receiver {
 	/*
@@ -25,6 +43,31 @@ public class Receiver {
      */
 	private String logFileName;
 	
+	/*
+     * The trace of the packets and ACKs, which replaces the log file unless it is
+     * stdout.
+     */
+	private PacketTrace trace;
+	
+	/*
+     * The statistics of the flows, which are exported to the statistics file if one
+     * is given.
+     */
+	private TransferStats stats;
+	
+	/*
+     * The columns of a sample of the statistics of a flow.
+     */
+	private static final String[] SAMPLE_COLUMNS = {"conn_id", "received_pkts", "bytes_delivered", "rwnd_pkts",
+		"reorder_span_pkts", "reorder_depth_max", "out_of_order_pkts", "duplicate_pkts", "recovered_pkts"};
+	
+	/*
+     * The names of the values of the summary of the statistics of a flow.
+     */
+	private static final String[] SUMMARY_NAMES = {"conn_id", "elapsed_s", "bytes_delivered", "goodput_mbps",
+		"received_pkts", "duplicate_pkts", "duplicate_rate", "out_of_order_pkts", "out_of_order_rate",
+		"reorder_depth_max", "reorder_depth_avg", "recovered_pkts"};
+	
 	/*
      * Source IP address of the sender.
      */
@@ -40,6 +83,27 @@ public class Receiver {
      */
 	private short ackPort;
 	
+	/*
+     * The address of the senders, or null if the ACKs are sent to the address from
+     * which each flow came.
+     */
+	private InetAddress srcAddress;
+	
+	/*
+     * The address from which the last packet came.
+     */
+	private SocketAddress pktAddress;
+	
+	/*
+     * The ACK port number of the sender of a packet.
+     */
+	private short pktAckPort;
+	
+	/*
+     * The connection ID of a packet.
+     */
+	private int connId;
+	
 	/*
      * Destination IP address of the receiver.
      */
@@ -51,9 +115,9 @@ public class Receiver {
 	private short destPort;
 	
 	/*
-     * The size of the receiver window.
+     * The size of the sender window of a packet.
      */
-	private short windowSize;
+	private int windowSize;
 	
 	/*
      * The sequence number of a packet.
@@ -61,9 +125,58 @@ public class Receiver {
 	private int seqNum;
 	
 	/*
-     * The expected sequence number of a packet.
+     * The length of the data of a packet.
      */
-	private int expectedSeqNum;
+	private int payloadLength;
+	
+	/*
+     * The MSS field of a packet, which is the MSS proposed by a SYN or the MSS of
+     * the transfer in a data packet.
+     */
+	private int pktMss;
+	
+	/*
+     * The timestamp of a packet, which is echoed in its ACK.
+     */
+	private int pktTimestamp;
+	
+	/*
+     * The size of the packet buffers, which is raised to hold the largest MSS which
+     * has been agreed with a sender.
+     */
+	private int pktSize = HEADER_LENGTH + Flow.BASE_MSS;
+	
+	/*
+     * The packet buffers which are free to receive a packet.
+     */
+	private ArrayDeque<ByteBuffer> freeBuffs = new ArrayDeque<ByteBuffer>();
+	
+	/*
+     * The thread which writes the packets in order to the received files.
+     */
+	private DiskWriter diskWriter;
+	
+	/*
+     * The flows whose packets in order have not all been written, so that their
+     * buffers are freed and their windows opened as the disk writer goes on.
+     */
+	private ArrayDeque<Flow> writingFlows = new ArrayDeque<Flow>();
+	
+	/*
+     * The flows of the transfers, by connection ID.
+     */
+	private FlowTable flows = new FlowTable();
+	
+	/*
+     * Whether the receiver keeps running and receives many transfers.
+     */
+	private boolean isDaemon;
+	
+	/*
+     * Whether the receiver is done, which is when its only transfer is finished if
+     * it is not a daemon.
+     */
+	private boolean isDone;
 	
 	/*
      * The ACK number of a packet.
@@ -78,27 +191,84 @@ public class Receiver {
 	/*
      * The checksum of a packet, which is computed over the header and data.
      */
-	private short checksum;
+	private int checksum;
+	
+	/*
+     * The type of the checksum of a packet, Internet or CRC32C.
+     */
+	private int checksumType;
+	
+	/*
+     * The CRC32C checksum, which is made for the first packet which uses it.
+     */
+	private PacketChecksum packetChecksum;
 	
 	/*
-     * The maximum segment size. Here we use the default value 576.
+     * The largest MSS which the receiver accepts, which is the largest UDP payload
+     * minus the header.
+     */
+    private static final int MAX_MSS = 65507 - Flow.HEADER_LENGTH;
+    
+    /*
+     * The length of the header in bytes.
+     */
+    private static final int HEADER_LENGTH = Flow.HEADER_LENGTH;
+    
+    /*
+     * The time in milliseconds after its last packet when a daemon removes a flow.
+     * A finished flow is also kept for this time, so that its late packets do not
+     * start it again.
+     */
+    private final long IDLE_TIMEOUT = 60000;
+    
+    /*
+     * The time in milliseconds to wait for the TCP connection to a sender, and for
+     * the last ACKs to be written before the receiver exits.
+     */
+    private final int CONNECT_TIMEOUT = 3000;
+    
+    /*
+     * The largest number of ACK frames which wait to be written to a sender. A
+     * later frame is dropped, since the next one tells as much.
      */
-    private final int MSS = 576;
+    private final int MAX_QUEUED_ACKS = 64;
     
     /*
-     * The TCP socket which is used to send the ACK packet to the sender.
+     * The longest time in milliseconds for which an ACK is delayed.
      */
-    private Socket sendSocket;
+    private final long ACK_DELAY = 40;
+    
+    /*
+     * The largest number of packets which are received in one pass before their
+     * ACKs are sent.
+     */
+    private final int MAX_BATCH = 64;
+    
+    /*
+     * The largest window scale, as in TCP.
+     */
+    private final int MAX_WINDOW_SCALE = 14;
+    
+    /*
+     * The flows whose ACK is delayed, or waits for the end of the current pass.
+     */
+    private ArrayDeque<Flow> pendingAcks = new ArrayDeque<Flow>();
        
     /*
-     * The UDP socket which is used to listen to calls from the sender (proxy).
+     * The UDP channel which is used to listen to calls from the sender (proxy).
      */
-    private DatagramSocket listeningSocket;
+    private DatagramChannel listeningChannel;
     
     /*
-     * The ACK packet received from the receiver.
+     * The selector which waits for packets on the UDP channel, and for the TCP
+     * connections to the senders to be made or to take more ACKs.
      */
-    private String ack;
+    private Selector selector;
+    
+    /*
+     * The ACK frame sent to the sender.
+     */
+    private AckFrame ack = new AckFrame();
 
     public static void main(String[] args) {
     	new Receiver(args);
@@ -111,53 +281,82 @@ public class Receiver {
         	this.srcIp = args[2];
         	this.ackPort = Short.parseShort(args[3]);
         	this.logFileName = args[4];
-            this.listeningSocket = new DatagramSocket(this.destPort);
-            this.destIp = this.listeningSocket.getLocalAddress().toString();
+        	this.isDaemon = (args.length >= 6 && args[5].equals("daemon"));
+        	this.stats = new TransferStats((args.length >= 7) ? args[6] : null, SAMPLE_COLUMNS);
+        	this.srcAddress = this.srcIp.equals("*") ? null : InetAddress.getByName(this.srcIp);
+            this.listeningChannel = DatagramChannel.open();
+            this.listeningChannel.socket().bind(new InetSocketAddress(this.destPort));
+            this.destIp = this.listeningChannel.socket().getLocalAddress().toString();
+            this.listeningChannel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.listeningChannel.register(this.selector, SelectionKey.OP_READ);
+            this.diskWriter = new DiskWriter(this.selector);
+            this.diskWriter.start();
 
-            File logFile = new File(this.logFileName);
             PrintWriter logWriter = null;
 
             if (this.logFileName.equals("stdout")) {
             	logWriter = new PrintWriter(System.out, true);
             }
             else {
-            	logWriter = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)), true);
+            	this.trace = PacketTrace.open(this.logFileName, this.isDaemon ? PacketTrace.DAEMON : PacketTrace.RECEIVER,
+            			this.destIp, this.srcIp);
             }
+            
+            long nextCheckTime = System.currentTimeMillis() + 1000;
+            int batch = 0;
 
-            while (true) {
-            	//Receive a packet from the sender.
-                byte[] pkt = new byte[20 + MSS];
-                DatagramPacket datagramPkt = new DatagramPacket(pkt, 20 + MSS);
-                this.listeningSocket.receive(datagramPkt);
-                pkt = datagramPkt.getData();
-                getHeaderInfo(pkt);
-                toLogFile(logWriter);
-
-                //If the packet is the expected one and is not corrupted.
-                if (this.seqNum == this.expectedSeqNum && getChecksum(pkt) == this.checksum) {
-                    //Get the file data from the packet.
-                	this.expectedSeqNum++;
-                	byte[] pktData = new byte[MSS];
-                	System.arraycopy(pkt, 20, pktData, 0, MSS);
-                    FileOutputStream fileOutputStream = new FileOutputStream(this.fileName, true);
-                    fileOutputStream.write(pktData);
-                    fileOutputStream.close();
-
-                    //Send ACK to the sender.
-                    this.sendSocket = new Socket(this.srcIp, this.ackPort);
-                    DataOutputStream ackWriter = new DataOutputStream(sendSocket.getOutputStream());
-                    toLogFile(logWriter, 1);
-                    ackWriter.writeBytes(this.ack + '\n');
-
-                    //If FIN = 17, terminate the transmission.
-                    if (this.flags == 17) {
-                        break;
-                    }
-                }
+            while (!this.isDone) {
+            	//Receive a packet from a sender into a free buffer, or wait for one.
+            	ByteBuffer pktBuff = getFreeBuff();
+            	this.pktAddress = this.listeningChannel.receive(pktBuff);
+            	
+            	if (this.pktAddress == null) {
+            		//The channel has been drained, so the ACKs of the pass are sent, and
+            		//the receiver waits until the next delayed ACK is due.
+            		this.freeBuffs.add(pktBuff);
+            		long wait = sendPendingAcks(logWriter);
+            		batch = 0;
+            		this.selector.select(Math.max(Math.min(wait, 1000), 1));
+            		writeSelectedAcks();
+            	}
+            	else {
+            		receivePkt(pktBuff, logWriter);
+            		
+            		if (++batch == MAX_BATCH) {
+            			sendPendingAcks(logWriter);
+            			batch = 0;
+            		}
+            	}
+            	
+            	//Free the buffers which the disk writer has written, and finish the
+            	//flows whose files have reached the disk.
+            	reapWrites(logWriter);
+            	
+            	//A daemon looks for the idle flows once per second.
+            	long now = System.currentTimeMillis();
+            	
+            	if (this.isDaemon && now >= nextCheckTime) {
+            		removeIdleFlows(now);
+            		nextCheckTime = now + 1000;
+            	}
+            }
+            
+            //Write the last ACKs, such as the one of the FIN, before exiting.
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            
+            while (hasQueuedAcks() && System.currentTimeMillis() < deadline) {
+            	this.selector.select(Math.max(deadline - System.currentTimeMillis(), 1));
+            	writeSelectedAcks();
+            }
+            
+            if (this.trace != null) {
+            	this.trace.close();
             }
             
-            System.out.println("Delivery completed successfully");
-            this.listeningSocket.close();
+            this.stats.close();
+            
+            this.listeningChannel.close();
         }
         catch (Exception e) {
         	//System.out.println("Error! Please try again.");
@@ -165,72 +364,659 @@ public class Receiver {
     		System.exit(1);
         }
     }
-
+    
     /**
-     * This method obtains information from the header.
+     * This method handles a packet received from a sender. The packet is buffered
+     * in the reorder buffer of its flow, and the packets which are now in order are
+     * handed to the disk writer.
      */
-    private void getHeaderInfo(byte[] pkt) {
+    private void receivePkt(ByteBuffer pktBuff, PrintWriter logWriter) throws IOException {
+    	int length = pktBuff.position();
+    	
+    	//Drop a packet which is too short to hold its header.
+    	if (length < HEADER_LENGTH) {
+    		this.freeBuffs.add(pktBuff);
+    		return;
+    	}
+    	
+    	getHeaderInfo(pktBuff);
+    	toLogFile(logWriter);
+    	
+    	//If the packet is corrupted, drop it.
+    	if (this.payloadLength < 0 || this.payloadLength > length - HEADER_LENGTH ||
+    			!isChecksumValid(pktBuff, HEADER_LENGTH + this.payloadLength)) {
+    		this.freeBuffs.add(pktBuff);
+    		return;
+    	}
+    	
+    	//Find the flow of the packet. Only the first one is received if the receiver
+    	//is not a daemon.
+    	Flow flow = this.flows.get(this.connId);
+    	
+    	if (flow == null) {
+    		if (!this.isDaemon && this.flows.size() > 0) {
+    			this.freeBuffs.add(pktBuff);
+    			return;
+    		}
+    		
+    		flow = openFlow();
+    	}
+    	
+    	flow.lastTime = System.currentTimeMillis();
+    	
+    	//The late packets of a finished flow are dropped.
+    	if (flow.isFinished()) {
+    		this.freeBuffs.add(pktBuff);
+    		return;
+    	}
+    	
+    	try {
+    		//A SYN proposes an MSS or probes the path with its padded data, and only
+    		//needs its ACK. The packet buffers are made big enough for the agreed MSS.
+    		//Its data starts with the length of the file, and it is only answered once
+    		//the checkpoint of the received file has been checked by the disk writer,
+    		//so that the SYN ACK tells the sender where to resume. A daemon names the
+    		//received files after the connection IDs, so it cannot resume them.
+    		if ((this.flags & 2) != 0) {
+    			if (!this.isDaemon && this.payloadLength >= 8 && !flow.openCheckpoint(pktBuff.getLong(HEADER_LENGTH))) {
+    				this.diskWriter.schedule(flow);
+    				this.freeBuffs.add(pktBuff);
+    				return;
+    			}
+    			
+    			setFec(flow);
+    			flow.maxMss = Math.min(this.pktMss, MAX_MSS);
+    			this.pktSize = Math.max(this.pktSize, HEADER_LENGTH + flow.maxMss);
+    			this.freeBuffs.add(pktBuff);
+    			sendSynAck(flow, logWriter);
+    			return;
+    		}
+    		
+    		//The first data packet gives the MSS of the transfer and the sequence
+    		//number from which the sender has resumed it.
+    		if ((this.flags & 8) == 0 && !flow.isStarted()) {
+    			if (!flow.start(this.ackNum, this.pktMss)) {
+    				this.freeBuffs.add(pktBuff);
+    				return;
+    			}
+    			
+    			if (flow.getStartOffset() > 0) {
+    				System.out.println("Delivery resumed at byte " + flow.getStartOffset());
+    			}
+    		}
+    		
+    		int oldExpectedSeqNum = flow.expectedSeqNum;
+    		int lostSeqNum = -1;
+    		
+    		//Buffer the packet if it is within the window and has not been received,
+    		//and add it to its group of the forward error correction. A parity packet
+    		//is only added to its group, and needs no ACK unless it recovers a packet,
+    		//which is then acknowledged as if it had been received.
+    		if ((this.flags & 8) != 0) {
+    			lostSeqNum = flow.addParity(this.seqNum, this.ackNum, pktBuff, this.payloadLength, this.flags == 25);
+    			this.freeBuffs.add(pktBuff);
+    			
+    			if (lostSeqNum == -1) {
+    				return;
+    			}
+    			
+    			this.seqNum = lostSeqNum;
+    		}
+    		else if (!flow.buffer(this.seqNum, pktBuff, this.payloadLength, this.pktMss, this.flags == 17, this.windowSize)) {
+    			flow.receivedPkts++;
+    			this.freeBuffs.add(pktBuff);
+    		}
+    		else {
+    			flow.receivedPkts++;
+    			lostSeqNum = flow.addData(this.seqNum, pktBuff, this.payloadLength);
+    		}
+    		
+    		if (lostSeqNum != -1) {
+    			ByteBuffer lostBuff = getFreeBuff();
+    			
+    			if (!flow.recover(lostSeqNum, lostBuff)) {
+    				this.freeBuffs.add(lostBuff);
+    			}
+    		}
+    		
+    		//Hand the packets which are now in order to the disk writer.
+    		if (flow.advance()) {
+    			this.diskWriter.schedule(flow);
+    			
+    			if (!flow.isWriting) {
+    				flow.isWriting = true;
+    				this.writingFlows.add(flow);
+    			}
+    		}
+    		
+    		boolean isInOrder = this.seqNum == oldExpectedSeqNum && flow.expectedSeqNum == oldExpectedSeqNum + 1;
+    		
+    		if (flow.unackedPkts == 0) {
+    			flow.ackTimestamp = this.pktTimestamp;
+    			flow.ackDeadline = System.currentTimeMillis() + ACK_DELAY;
+    		}
+    		else if (!isInOrder && flow.expectedSeqNum != oldExpectedSeqNum) {
+    			//As in RFC 7323, a packet which fills a gap has its own timestamp echoed,
+    			//so the sender can tell that its retransmission was needed.
+    			flow.ackTimestamp = this.pktTimestamp;
+    		}
+    		
+    		flow.unackedPkts++;
+    		
+    		//A packet which is out of order, a duplicate one (whose ACK may have been
+    		//lost) or one which fills a gap is acknowledged at once, so that the sender
+    		//finds the losses quickly. So is the FIN packet, although the FIN itself is
+    		//only acknowledged once the file has been written. Every second packet in
+    		//order is acknowledged at the end of the pass, and another one waits for at
+    		//most ACK_DELAY.
+    		if (!isInOrder || flow.isFinished()) {
+    			sendAck(flow, logWriter);
+    		}
+    		else {
+    			flow.isAckNow = flow.unackedPkts >= 2;
+    			
+    			if (!flow.isAckQueued) {
+    				flow.isAckQueued = true;
+    				this.pendingAcks.add(flow);
+    			}
+    		}
+    		
+    		if (this.stats.isExported() && flow.lastTime >= flow.nextSampleTime) {
+    			addSample(flow);
+    		}
+    	}
+    	catch (IOException e) {
+    		failFlow(flow, e);
+    	}
+    }
+    
+    /**
+     * This method frees the buffers of the packets which the disk writer has written.
+     * If this opens the window of a flow by a quarter of its reorder buffer since the
+     * last ACK, the sender is told at once, since it may be waiting for it. Once the
+     * whole file has been written, the FIN is acknowledged and the ACK connection is
+     * closed. The flow of a daemon is kept until it is idle.
+     */
+    private void reapWrites(PrintWriter logWriter) throws IOException {
+    	for (int i = this.writingFlows.size(); i > 0; i--) {
+    		Flow flow = this.writingFlows.poll();
+    		
+    		if (this.flows.get(flow.connId) != flow) {
+    			flow.isWriting = false;
+    			continue;
+    		}
+    		
+    		flow.reclaim(this.freeBuffs);
+    		
+    		try {
+    			if (flow.writeError != null) {
+    				throw flow.writeError;
+    			}
+    			
+    			if (flow.isWritten()) {
+    				flow.isWriting = false;
+    				sendAck(flow, logWriter);
+    				flow.close(this.freeBuffs);
+    				this.diskWriter.schedule(flow);
+    				
+    				if (flow.recoveredPkts > 0) {
+    					System.out.println("Packets recovered by FEC = " + flow.recoveredPkts +
+    							(this.isDaemon ? " (connection " + flow.connId + ")" : ""));
+    				}
+    				
+    				printStats(flow);
+    				
+    				if (this.isDaemon) {
+    					System.out.println("Delivery of connection " + flow.connId + " completed successfully");
+    				}
+    				else {
+    					System.out.println("Delivery completed successfully");
+    					this.isDone = true;
+    				}
+    				
+    				continue;
+    			}
+    			
+    			int edge = flow.expectedSeqNum + flow.getWindow();
+    			
+    			if (edge - flow.advertisedEdge >= Math.max(flow.getBufferSize() / 4, 1)) {
+    				sendAck(flow, logWriter);
+    			}
+    		}
+    		catch (IOException e) {
+    			flow.isWriting = false;
+    			failFlow(flow, e);
+    			continue;
+    		}
+    		
+    		if (flow.hasPendingWrites()) {
+    			this.writingFlows.add(flow);
+    		}
+    		else {
+    			flow.isWriting = false;
+    		}
+    	}
+    }
+    
+    /**
+     * This method adds a sample of the statistics of a flow: the packets received,
+     * the bytes received in order, the advertised window, how far the packets are
+     * out of order now and at most since the last sample, and the out of order,
+     * duplicate and recovered packets so far.
+     */
+    private void addSample(Flow flow) {
+    	this.stats.addSample(flow.lastTime, flow.connId & 0xFFFFFFFFL, flow.receivedPkts, flow.getDeliveredBytes(),
+    			flow.getWindow(), flow.getReorderSpan(), flow.sampledReorderDepth, flow.outOfOrderPkts,
+    			flow.duplicatePkts, flow.recoveredPkts);
+    	flow.sampledReorderDepth = 0;
+    	flow.nextSampleTime = this.stats.getNextSampleTime(flow.lastTime);
+    }
+    
+    /**
+     * This method prints the statistics of a finished flow, and exports their
+     * summary to the statistics file.
+     */
+    private void printStats(Flow flow) {
+    	long time = System.currentTimeMillis() - flow.startTime;
+    	String connection = this.isDaemon ? " (connection " + flow.connId + ")" : "";
+    	
+    	if (flow.outOfOrderPkts > 0) {
+    		System.out.println("Packets received out of order = " + flow.outOfOrderPkts + ", largest reorder depth = " +
+    				flow.maxReorderDepth + connection);
+    	}
+    	
+    	if (flow.duplicatePkts > 0) {
+    		System.out.println("Duplicate packets received = " + flow.duplicatePkts + connection);
+    	}
+    	
+    	this.stats.addSummary(SUMMARY_NAMES, flow.connId & 0xFFFFFFFFL, time / 1000.0, flow.getDeliveredBytes(),
+    			(time > 0) ? flow.getDeliveredBytes() * 8.0 / time / 1000 : 0.0, flow.receivedPkts, flow.duplicatePkts,
+    			(flow.receivedPkts > 0) ? (double)flow.duplicatePkts / flow.receivedPkts : 0.0, flow.outOfOrderPkts,
+    			(flow.receivedPkts > 0) ? (double)flow.outOfOrderPkts / flow.receivedPkts : 0.0, flow.maxReorderDepth,
+    			flow.getAvgReorderDepth(), flow.recoveredPkts);
+    }
+    
+    /**
+     * This method sets the forward error correction of a flow from its SYN, whose
+     * ACK number field holds the number of data packets (K) and of parity packets
+     * (M) of a block. It is off if the field is 0 or does not hold a valid code,
+     * and is not changed by a later SYN.
+     */
+    private void setFec(Flow flow) {
+    	int k = (this.ackNum >>> 8) & 0xFF;
+    	int m = this.ackNum & 0xFF;
+    	
+    	if (flow.fecK == 0 && m >= 1 && m <= k) {
+    		flow.fecK = k;
+    		flow.fecM = m;
+    	}
+    }
+    
+    /**
+     * This method ends a flow where an error has happened. An error of a daemon only
+     * ends the flow where it happens.
+     */
+    private void failFlow(Flow flow, IOException e) throws IOException {
+    	if (!this.isDaemon) {
+    		throw e;
+    	}
+    	
+    	System.err.println("Connection " + flow.connId + " failed: " + e);
+    	removeFlow(flow);
+    }
+    
+    /**
+     * This method sends the ACKs which are due: the ones to be sent at the end of
+     * the pass, and the delayed ones whose time has come. So the packets received
+     * in one pass give a single ACK per flow. It returns the time in milliseconds
+     * until the next delayed ACK is due.
+     */
+    private long sendPendingAcks(PrintWriter logWriter) throws IOException {
+    	long now = System.currentTimeMillis();
+    	long wait = Long.MAX_VALUE;
+    	
+    	for (int i = this.pendingAcks.size(); i > 0; i--) {
+    		Flow flow = this.pendingAcks.poll();
+    		
+    		//A flow which has been removed or finished, or has been acknowledged since,
+    		//needs no ACK.
+    		if (this.flows.get(flow.connId) != flow || flow.isFinished() || flow.unackedPkts == 0) {
+    			flow.isAckQueued = false;
+    		}
+    		else if (flow.isAckNow || now >= flow.ackDeadline) {
+    			flow.isAckQueued = false;
+    			
+    			try {
+    				sendAck(flow, logWriter);
+    			}
+    			catch (IOException e) {
+    				failFlow(flow, e);
+    			}
+    		}
+    		else {
+    			wait = Math.min(wait, flow.ackDeadline - now);
+    			this.pendingAcks.add(flow);
+    		}
+    	}
+    	
+    	return wait;
+    }
+    
+    /**
+     * This method starts the flow of the connection ID of a packet. The received file
+     * of a daemon is named after the connection ID, and its ACKs are sent to the ACK
+     * port given in the header of the packet.
+     */
+    private Flow openFlow() {
+    	InetAddress address = this.srcAddress;
+    	
+    	if (address == null) {
+    		address = ((InetSocketAddress)this.pktAddress).getAddress();
+    	}
+    	
+    	Flow flow = null;
+    	
+    	if (this.isDaemon) {
+    		flow = new Flow(this.connId, this.fileName + "." + (this.connId & 0xFFFFFFFFL),
+    				new InetSocketAddress(address, this.pktAckPort & 0xFFFF));
+    	}
+    	else {
+    		flow = new Flow(this.connId, this.fileName, new InetSocketAddress(address, this.ackPort));
+    	}
+    	
+    	this.flows.put(flow);
+    	return flow;
+    }
+    
+    /**
+     * This method closes a flow and removes it from the table.
+     */
+    private void removeFlow(Flow flow) throws IOException {
+    	flow.close(this.freeBuffs);
+    	
+    	//A flow which has failed or is idle does not wait for its queued ACKs.
+    	if (flow.ackChannel != null) {
+    		flow.ackChannel.close();
+    		flow.ackChannel = null;
+    	}
+    	
+    	this.diskWriter.schedule(flow);
+    	this.flows.remove(flow.connId);
+    }
+    
+    /**
+     * This method removes the flows which have received no packet for IDLE_TIMEOUT.
+     * A flow which is not finished leaves a partial file, since its sender has gone.
+     */
+    private void removeIdleFlows(long now) throws IOException {
+    	int i = 0;
+    	
+    	while (i < this.flows.capacity()) {
+    		Flow flow = this.flows.getSlot(i);
+    		
+    		//A removed flow may be filled by a later one, so the slot is checked again.
+    		if (flow != null && now - flow.lastTime > IDLE_TIMEOUT) {
+    			if (!flow.isFinished()) {
+    				System.err.println("Connection " + flow.connId + " timed out");
+    			}
+    			
+    			removeFlow(flow);
+    		}
+    		else {
+    			i++;
+    		}
+    	}
+    }
+    
+    /**
+     * This method returns a free packet buffer. The buffers are direct, so the
+     * packets are received into them and written from them without being copied.
+     * They are reused, so at most one more than the reorder buffer holds is ever
+     * made. A buffer made before a larger MSS was agreed is dropped, so that a
+     * packet of that size is not cut.
+     */
+    private ByteBuffer getFreeBuff() {
+    	ByteBuffer buff = this.freeBuffs.poll();
+    	
+    	while (buff != null && buff.capacity() < this.pktSize) {
+    		buff = this.freeBuffs.poll();
+    	}
+    	
+    	if (buff == null) {
+    		buff = ByteBuffer.allocateDirect(this.pktSize);
+    	}
+    	
+    	buff.clear();
+    	return buff;
+    }
+    
+    /**
+     * This method sends an ACK of a flow to its sender. The ACK echoes the timestamp
+     * of the first packet received since the last ACK, which gives the sender the
+     * RTT of the very transmission of that packet, even if it has been
+     * retransmitted, including the time for which the ACK was delayed. The window
+     * is the free space of the reorder buffer, scaled down to fit its field.
+     */
+    private void sendAck(Flow flow, PrintWriter logWriter) throws IOException {
+    	//The ACK has FIN = 1 once the whole file has been written. Until then, the
+    	//FIN packet is not acknowledged, so the sender waits for the disk.
+    	this.ack.ackNum = flow.getAckNum();
+    	this.ack.flags = (byte)(flow.isWritten() ? 17 : 16);
+    	this.ack.windowScale = flow.getWindowScale();
+    	this.ack.windowSize = (short)(flow.getWindow() >> this.ack.windowScale);
+    	this.ack.mss = 0;
+    	this.ack.timestamp = flow.ackTimestamp;
+    	flow.getSackBlocks(this.ack);
+    	flow.unackedPkts = 0;
+    	flow.isAckNow = false;
+    	flow.advertisedEdge = this.ack.ackNum + this.ack.getWindow();
+    	writeAck(flow, logWriter);
+    }
+    
+    /**
+     * This method answers a SYN with the largest MSS which the receiver accepts. Its
+     * ACK number is the size of the data of the SYN, so that the sender knows which
+     * of its probes has arrived. It also gives the chunks which the received file
+     * holds, and their digest.
+     */
+    private void sendSynAck(Flow flow, PrintWriter logWriter) throws IOException {
+    	this.ack.ackNum = this.payloadLength;
+    	this.ack.flags = (byte)18;
+    	this.ack.windowSize = 0;
+    	this.ack.windowScale = 0;
+    	this.ack.mss = flow.maxMss;
+    	this.ack.timestamp = this.pktTimestamp;
+    	this.ack.sackNum = 0;
+    	this.ack.resumeChunks = flow.getResumeChunks();
+    	this.ack.resumeDigest = flow.getResumeDigest();
+    	writeAck(flow, logWriter);
+    }
+    
+    /**
+     * This method queues the ACK frame to the sender of a flow, and writes as many
+     * queued frames as its TCP connection takes without blocking. The connection to
+     * the sender is started for the first ACK, and is then kept for the others. The
+     * selector tells when it is made, or takes more frames, so a slow sender never
+     * holds up the other flows. If MAX_QUEUED_ACKS frames are already queued, the
+     * frame is dropped.
+     */
+    private void writeAck(Flow flow, PrintWriter logWriter) throws IOException {
+    	if (flow.ackChannel == null) {
+    		flow.ackChannel = SocketChannel.open();
+    		flow.ackChannel.configureBlocking(false);
+    		flow.ackChannel.socket().setTcpNoDelay(true);
+    		flow.ackChannel.register(this.selector, 0, flow);
+    		flow.ackOutput = ByteBuffer.allocate(AckFrame.SIZE * MAX_QUEUED_ACKS);
+    		flow.ackConnectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+    		flow.ackChannel.connect(flow.ackAddress);
+    	}
+    	
+    	if (flow.ackOutput.remaining() < AckFrame.SIZE) {
+    		return;
+    	}
+    	
+    	this.ack.write(flow.ackOutput);
+        toLogFile(logWriter, flow);
+        flushAcks(flow);
+    }
+    
+    /**
+     * This method writes the queued ACK frames of a flow as far as its TCP connection
+     * takes them without blocking, and has the selector wait for the connection to
+     * be made or to take the rest. The connection of a closed flow is closed once
+     * its last frames have been written.
+     */
+    private void flushAcks(Flow flow) throws IOException {
+    	SelectionKey key = flow.ackChannel.keyFor(this.selector);
+    	
+    	if (flow.ackChannel.isConnectionPending() && !flow.ackChannel.finishConnect()) {
+    		if (System.currentTimeMillis() >= flow.ackConnectDeadline) {
+    			throw new SocketTimeoutException("Error: cannot connect to " + flow.ackAddress);
+    		}
+    		
+    		key.interestOps(SelectionKey.OP_CONNECT);
+    		return;
+    	}
+    	
+    	flow.ackOutput.flip();
+    	flow.ackChannel.write(flow.ackOutput);
+    	flow.ackOutput.compact();
+    	
+    	if (flow.hasQueuedAcks()) {
+    		key.interestOps(SelectionKey.OP_WRITE);
+    	}
+    	else if (flow.isClosed()) {
+    		flow.ackChannel.close();
+    		flow.ackChannel = null;
+    	}
+    	else {
+    		key.interestOps(0);
+    	}
+    }
+    
+    /**
+     * This method writes the queued ACK frames of the flows whose TCP connection the
+     * selector has found made or ready to take more. A flow whose connection fails
+     * is ended.
+     */
+    private void writeSelectedAcks() throws IOException {
+    	Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+    	
+    	while (keys.hasNext()) {
+    		SelectionKey key = keys.next();
+    		Flow flow = (Flow)key.attachment();
+    		
+    		keys.remove();
+    		
+    		if (flow == null || !key.isValid()) {
+    			continue;
+    		}
+    		
+    		try {
+    			flushAcks(flow);
+    		}
+    		catch (IOException e) {
+    			if (this.flows.get(flow.connId) == flow) {
+    				failFlow(flow, e);
+    			}
+    			else {
+    				key.channel().close();
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * This method returns whether a flow still has ACK frames to be written, or its
+     * TCP connection to be made.
+     */
+    private boolean hasQueuedAcks() {
+    	for (SelectionKey key: this.selector.keys()) {
+    		if (key.attachment() != null && key.isValid() && key.interestOps() != 0) {
+    			return true;
+    		}
+    	}
+    	
+    	return false;
+    }
+    
+    /**
+     * This method obtains information from the header. The fields are read in place
+     * from the packet buffer.
+     */
+    private void getHeaderInfo(ByteBuffer pktBuff) {
     	//Get the source port number of the packet.
-    	byte[] srcPort = new byte[2];
-        System.arraycopy(pkt, 0, srcPort, 0, 2);
-        this.srcPort = toShort(srcPort);
+        this.srcPort = pktBuff.getShort(0);
         
         //Get the destination port number of the packet.
-    	byte[] destPort = new byte[2];
-        System.arraycopy(pkt, 2, destPort, 0, 2);
-        this.destPort = toShort(destPort);
+        this.destPort = pktBuff.getShort(2);
         
         //Get the sequence number of the packet.
-    	byte[] seqNum = new byte[4];
-        System.arraycopy(pkt, 4, seqNum, 0, 4);
-        this.seqNum = toInt(seqNum);
+        this.seqNum = pktBuff.getInt(4);
     	
     	//Get the ACK number of the packet.
-        byte[] ackNum = new byte[4];
-        System.arraycopy(pkt, 8, ackNum, 0, 4);
-        this.ackNum = toInt(ackNum);
+        this.ackNum = pktBuff.getInt(8);
         
         //Get the flag field of the packet.
-        this.flags = pkt[13];
+        this.flags = pktBuff.get(13);
+        
+        //Get the window size of the packet, which is scaled by the window scale field.
+        this.windowSize = (pktBuff.getShort(14) & 0xFFFF) << Math.min(pktBuff.get(30) & 0xFF, MAX_WINDOW_SCALE);
+        
+        //Get the checksum type and the checksum of the packet. A CRC32C checksum
+        //also takes the urgent data pointer field.
+        this.checksumType = pktBuff.get(12) & 15;
+        
+        if (this.checksumType == PacketChecksum.CRC32C) {
+        	this.checksum = pktBuff.getInt(16);
+        }
+        else {
+        	this.checksum = pktBuff.getShort(16) & 0xFFFF;
+        }
         
-        //Get the window size of the packet.
-    	byte[] windowSize = new byte[2];
-        System.arraycopy(pkt, 14, windowSize, 0, 2);
-        this.windowSize = toShort(windowSize);
+        //Get the payload length of the packet.
+        this.payloadLength = pktBuff.getShort(20) & 0xFFFF;
         
-        //Get the checksum of the packet.
-    	byte[] checksum = new byte[2];
-        System.arraycopy(pkt, 16, checksum, 0, 2);
-        this.checksum = toShort(checksum);
+        //Get the ACK port number of the sender of the packet.
+        this.pktAckPort = pktBuff.getShort(22);
+        
+        //Get the connection ID of the packet.
+        this.connId = pktBuff.getInt(24);
+        
+        //Get the MSS of the packet.
+        this.pktMss = pktBuff.getShort(28) & 0xFFFF;
+        
+        //Get the timestamp of the packet.
+        this.pktTimestamp = pktBuff.getInt(32);
     }
 
     /**
-     * This method computes the checksum of a packet over the header and data.
-     */
-    private short getChecksum(byte[] pkt) {
-    	//compute the checksum of the header.
-    	this.checksum = (short)(this.srcPort + this.destPort + this.windowSize);
-    	
-        //compute the checksum of the data.
-        for (int i = 0; i < pkt.length; i += 2) {
-        	if (i != pkt.length - 1) {
-        		byte[] byteArray = new byte[2];
-        		System.arraycopy(pkt, i, byteArray, 0, 2);
-        		this.checksum += toShort(byteArray);
-        	}
-        	else {
-        		break;
-        	}
-        }
+     * This method verifies the checksum of the first length bytes of a packet, which
+     * are the header and data. The Internet checksum of a packet is 0 when it is
+     * computed over the checksum field too, so the packet is not changed.
+     */
+    private boolean isChecksumValid(ByteBuffer pktBuff, int length) {
+    	if (this.checksumType == PacketChecksum.CRC32C) {
+    		if (this.packetChecksum == null) {
+    			this.packetChecksum = new PacketChecksum();
+    		}
+    		
+    		return this.packetChecksum.crc32c(pktBuff, length) == this.checksum;
+    	}
     	
-    	this.checksum = (short)(~this.checksum);
-    	return this.checksum;
+    	return this.checksumType == PacketChecksum.INTERNET && PacketChecksum.internet(pktBuff, length) == 0;
     }
 
     /**
      * This method logs the packets transmission to the log file.
      */
     private void toLogFile(PrintWriter logWriter) {
+    	if (this.trace != null) {
+    		this.trace.addPacket(false, this.srcPort, this.destPort, this.seqNum, this.ackNum, this.flags, this.payloadLength,
+    				this.pktMss, this.connId, 0, 0);
+    		return;
+    	}
+    	
     	String srcAddr = this.srcIp + ":" + this.srcPort;
         String destAddr = this.destIp + ":" + this.destPort;
         String flags = "";
@@ -238,41 +1024,39 @@ public class Receiver {
         if (this.flags == 16) {
         	flags = ", ACK 1, FIN 0";
         }
+        else if (this.flags == 18) {
+        	flags = ", ACK 1, FIN 0, SYN 1, MSS " + this.pktMss + ", Length " + this.payloadLength;
+        }
+        else if ((this.flags & 8) != 0) {
+        	flags = ", ACK 1, FIN " + (this.flags & 1) + ", FEC 1";
+        }
         else {
         	flags = ", ACK 1, FIN 1";
         }
         
-        this.ack = "Sequence Number " + this.seqNum + ", ACK Number " + this.ackNum + flags;
+        //A daemon also logs the connection ID, since the packets of many flows are mixed.
+        if (this.isDaemon) {
+        	flags += ", Connection ID " + (this.connId & 0xFFFFFFFFL);
+        }
+        
         logWriter.println(new Date() + ": Source " + srcAddr + ", Destination " + destAddr +
-        		", " + this.ack);
+        		", Sequence Number " + this.seqNum + ", ACK Number " + this.ackNum + flags);
     }
     
     /**
      * This method logs the sent ACK to the log file.
      */
-    private void toLogFile(PrintWriter logWriter, int i) {
-        String srcAddr = this.destIp + ":" + this.sendSocket.getLocalPort();
-        String destAddr = this.srcIp + ":" + this.ackPort;
+    private void toLogFile(PrintWriter logWriter, Flow flow) {
+    	if (this.trace != null) {
+    		this.trace.addAck(true, flow.ackChannel.socket().getLocalPort(), flow.ackAddress.getPort(), this.ack,
+    				flow.connId, 0, 0);
+    		return;
+    	}
+    	
+        String srcAddr = this.destIp + ":" + flow.ackChannel.socket().getLocalPort();
+        String destAddr = flow.ackAddress.getAddress().getHostAddress() + ":" + flow.ackAddress.getPort();
         
         logWriter.println(new Date() + ": Source " + srcAddr + ", Destination " + destAddr +
         		", " + this.ack);
     }
-    
-    /**
-     * This method converts a byte array to a short number.
-     */
-    private short toShort(byte[] byteArray) {
-        ByteBuffer buff = ByteBuffer.wrap(byteArray);
-        buff.order(ByteOrder.BIG_ENDIAN);
-        return buff.getShort();
-    }
-    
-    /**
-     * This method converts a byte array to an integer.
-     */
-    private int toInt(byte[] byteArray) {
-        ByteBuffer buff = ByteBuffer.wrap(byteArray);
-        buff.order(ByteOrder.BIG_ENDIAN);
-        return buff.getInt();
-    }
 }
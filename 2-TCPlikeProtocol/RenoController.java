@@ -0,0 +1,62 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+
+/**
+ * This class implements the Reno congestion control (RFC 5681). The window grows
+ * by one packet per ACKed packet in slow start, and by one packet per window in
+ * congestion avoidance. A loss halves the window, and a timeout restarts from one
+ * packet in slow start.
+ */
+public class RenoController implements CongestionController {
+	/*
+     * The congestion window in packets.
+     */
+	private double cwnd = 4;
+
+	/*
+     * The slow start threshold in packets.
+     */
+	private double ssthresh = Integer.MAX_VALUE;
+
+	@Override
+	public void onAck(int ackedPkts, long rtt, boolean isCwndLimited, long now) {
+		if (!isCwndLimited) {
+			return;
+		}
+
+		if (this.cwnd < this.ssthresh) {
+			this.cwnd += ackedPkts;
+		}
+		else {
+			this.cwnd += ackedPkts / this.cwnd;
+		}
+	}
+
+	@Override
+	public void onLoss(long now) {
+		this.ssthresh = Math.max(this.cwnd / 2, 2);
+		this.cwnd = this.ssthresh;
+	}
+
+	@Override
+	public void onTimeout(long now) {
+		this.ssthresh = Math.max(this.cwnd / 2, 2);
+		this.cwnd = 1;
+	}
+
+	@Override
+	public int getWindow() {
+		return (int)Math.min(this.cwnd, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public double getPacingRate(long srtt) {
+		//As in Linux, the window is sent over half an RTT in slow start, so that it
+		//can still double, and a little faster than one RTT afterwards.
+		return ((this.cwnd < this.ssthresh) ? 2 : 1.2) * this.cwnd / Math.max(srtt, 1);
+	}
+}
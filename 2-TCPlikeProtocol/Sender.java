@@ -6,14 +6,22 @@
  */
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
 import java.net.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * This class implements the sender which sends TCP-like packets to the receiver
- * and then waits for the correspondent ACK. If a timeout does occur, it retransmit
- * the packet.
+ * This class implements the sender which sends TCP-like packets to the receiver.
+ * The packets in flight are limited by the window size and by the congestion
+ * window of a congestion controller. In Go-Back-N mode, the ACKs are cumulative,
+ * and a timeout goes back to the oldest unacknowledged packet. In Selective Repeat
+ * mode, each packet is acknowledged and retransmitted on its own. A transfer which
+ * has been cut off is resumed after the part of the file which the receiver
+ * already holds.
  */
 public class Sender {
 	/*
@@ -26,6 +34,12 @@ public class Sender {
      */
 	private String logFileName;
 	
+	/*
+     * The trace of the packets and ACKs, which replaces the log file unless it is
+     * stdout.
+     */
+	private PacketTrace trace;
+	
 	/*
      * Source IP address of the sender.
      */
@@ -52,9 +66,37 @@ public class Sender {
 	private short destPort;
 	
 	/*
-     * The size of the receiver window.
+     * The address to which the packets are sent.
+     */
+	private InetSocketAddress address;
+	
+	/*
+     * The size of the sender window, which is the most packets in flight.
+     */
+	private int windowSize;
+	
+	/*
+     * The number of bits by which the window size field of the header is shifted,
+     * so that the window can be larger than 65535 packets.
+     */
+	private int windowScale;
+	
+	/*
+     * The right edge of the window advertised by the receiver, which is the sequence
+     * number after the last one the receiver can take. There is no limit before the
+     * first ACK, when the receiver makes a reorder buffer for the sender window.
+     */
+	private int rwndEdge = Integer.MAX_VALUE;
+	
+	/*
+     * Whether the sender runs Selective Repeat instead of Go-Back-N.
+     */
+	private boolean isSelectiveRepeat;
+	
+	/*
+     * The congestion control, which adapts the number of packets in flight to the path.
      */
-	private short windowSize;
+	private CongestionController controller;
 	
 	/*
      * The sequence number of a packet.
@@ -74,17 +116,150 @@ public class Sender {
 	/*
      * The checksum of a packet, which is computed over the header and data.
      */
-	private short checksum;
+	private int checksum;
+	
+	/*
+     * The connection ID of the transfer, which is chosen at random.
+     */
+	private int connId = new Random().nextInt();
+	
+	/*
+     * The type of the checksum of the packets, Internet or CRC32C.
+     */
+	private int checksumType = PacketChecksum.INTERNET;
 	
 	/*
-     * The maximum segment size. Here we use the default value 576.
+     * The CRC32C checksum, or null if the Internet checksum is used.
+     */
+	private PacketChecksum packetChecksum;
+	
+	/*
+     * The number of duplicate ACKs, or of packets acknowledged after a packet, which
+     * shows that the packet has been lost.
+     */
+    private final int DUP_THRESH = 3;
+    
+    /*
+     * The largest number of packets in a mapped region of the given file.
+     */
+    private final int MAP_PKTS = 65536;
+    
+    /*
+     * The number of packets in a mapped region of the given file, which is less
+     * than MAP_PKTS if the region would be too large for a buffer.
+     */
+    private int mapPkts;
+    
+	/*
+     * The maximum segment size which every path is assumed to carry, from which
+     * the path MTU probing starts.
+     */
+    private final int BASE_MSS = 576;
+    
+    /*
+     * The largest MSS which the sender proposes, unless it is given. Larger packets
+     * than a jumbo Ethernet frame would be fragmented on most paths.
+     */
+    private final int DEFAULT_MAX_MSS = 8940;
+    
+    /*
+     * The number of times a path MTU probe is sent before its size is taken as too
+     * big for the path.
+     */
+    private final int MAX_PROBES = 3;
+    
+    /*
+     * The path MTU probing stops once the largest size which works is known to
+     * within this number of bytes.
+     */
+    private final int PROBE_STEP = 16;
+    
+    /*
+     * The largest MSS which the sender proposes.
+     */
+    private int maxMss = DEFAULT_MAX_MSS;
+    
+    /*
+     * The maximum segment size, which is negotiated with the receiver and then
+     * found by probing the path.
+     */
+    private int mss = BASE_MSS;
+    
+    /*
+     * The largest MSS which the receiver accepts, from its SYN ACK, or 0.
+     */
+    private int peerMss;
+    
+    /*
+     * The size of the last probe acknowledged by a SYN ACK, or -1.
+     */
+    private int ackedProbeSize = -1;
+    
+    /*
+     * The size of the data of the first SYN, which holds the length of the file.
+     */
+    private final int SYN_DATA_LENGTH = 8;
+    
+    /*
+     * The number of chunks of the file which the receiver holds, from its SYN ACK.
+     */
+    private int resumeChunks;
+    
+    /*
+     * The digest of the chunks which the receiver holds, from its SYN ACK.
+     */
+    private int resumeDigest;
+    
+    /*
+     * The sequence number from which the transfer is resumed, which is 0 unless
+     * the receiver already holds the start of the file.
+     */
+    private int startSeqNum;
+    
+    /*
+     * The length of the header in bytes.
+     */
+    private final int HEADER_LENGTH = 36;
+    
+    /*
+     * The smallest retransmission timeout in milliseconds. It is below the 1 second
+     * of RFC 6298, as in Linux, but a spurious timeout still makes the whole window
+     * be retransmitted.
+     */
+    private final long MIN_RTO = 200;
+    
+    /*
+     * The largest retransmission timeout in milliseconds, including the backoff.
+     */
+    private final long MAX_RTO = 60000;
+    
+    /*
+     * The granularity of the retransmission timers in microseconds.
+     */
+    private final double CLOCK_GRANULARITY = 1000;
+    
+    /*
+     * The wait in nanoseconds for the next paced packet from which the sender
+     * waits in the selector, which also wakes it for the ACKs. A shorter wait is
+     * too fine for the selector, and is parked and then spun.
+     */
+    private final long PARK_THRESHOLD = 1000000;
+    
+    /*
+     * The end of a short wait in nanoseconds which is spun instead of parked, since
+     * a parked thread may wake up this much late.
+     */
+    private final long SPIN_THRESHOLD = 50000;
+    
+    /*
+     * The length of the data of the packet being sent.
      */
-    private final int MSS = 576;
+    private int payloadLength;
     
     /*
      * Total number of bytes that have been sent to the receiver.
      */
-    private int totalBytesSent;
+    private long totalBytesSent;
     
     /*
      * Total number of packets that have been sent to the receiver.
@@ -97,69 +272,331 @@ public class Sender {
     private int totalPktsRetransmitted;
     
     /*
-     * This variable records whether a packet has been retransmitted.
+     * Total number of parity packets that have been sent to the receiver.
+     */
+    private int totalParityPktsSent;
+    
+    /*
+     * Total number of retransmitted packets whose first transmission turned out
+     * to have been received.
+     */
+    private int totalSpuriousRetransmits;
+    
+    /*
+     * The statistics of the transfer, which are exported to the statistics file if
+     * one is given.
+     */
+    private TransferStats stats;
+    
+    /*
+     * The name of the congestion control, for the summary of the statistics.
+     */
+    private String controllerName;
+    
+    /*
+     * The time in milliseconds when the next sample of the statistics is due.
+     */
+    private long nextSampleTime;
+    
+    /*
+     * The time in milliseconds of the last sample of the statistics.
+     */
+    private long lastSampleTime;
+    
+    /*
+     * The total bytes sent at the last sample of the statistics.
+     */
+    private long sampledBytesSent;
+    
+    /*
+     * The bytes of the file delivered at the last sample of the statistics.
+     */
+    private long sampledBytesDelivered;
+    
+    /*
+     * The columns of a sample of the statistics.
+     */
+    private static final String[] SAMPLE_COLUMNS = {"bytes_sent", "bytes_delivered", "throughput_mbps",
+    	"goodput_mbps", "cwnd_pkts", "rwnd_pkts", "in_flight_pkts", "srtt_us", "rto_ms", "retransmitted_pkts",
+    	"spurious_pkts"};
+    
+    /*
+     * The names of the values of the summary of the statistics.
+     */
+    private static final String[] SUMMARY_NAMES = {"mode", "congestion_control", "window_pkts", "mss", "fec",
+    	"elapsed_s", "bytes_sent", "bytes_delivered", "throughput_mbps", "goodput_mbps", "packets_sent",
+    	"retransmitted_pkts", "retransmission_rate", "spurious_pkts", "spurious_rate", "parity_pkts",
+    	"rtt_samples", "rtt_min_us", "rtt_avg_us", "rtt_p50_us", "rtt_p99_us", "rtt_max_us"};
+    
+    /*
+     * The number of data packets in a block of the forward error correction, or 0
+     * if no parity packets are sent.
+     */
+    private int fecK;
+    
+    /*
+     * The number of parity packets of a block.
+     */
+    private int fecM;
+    
+    /*
+     * The group in which each parity packet is built.
+     */
+    private FecGroup fecGroup;
+    
+    /*
+     * The sequence number of the oldest unacknowledged packet.
+     */
+    private int base;
+    
+    /*
+     * The sequence number of the next packet to be sent.
+     */
+    private int nextSeqNum;
+    
+    /*
+     * The sequence number after the highest one which has been sent. It is larger
+     * than the next one after a Go-Back-N timeout.
+     */
+    private int sentSeqNum;
+    
+    /*
+     * The number of packets which have been sent but are not acknowledged.
+     */
+    private int inFlight;
+    
+    /*
+     * The largest number of packets in the network during the current round trip,
+     * which ends once the packets sent before it started are acknowledged.
+     */
+    private int maxPipe;
+    
+    /*
+     * The largest number of packets in the network during the last round trip.
+     */
+    private int lastMaxPipe;
+    
+    /*
+     * The sequence number of the first packet sent in the current round trip.
+     */
+    private int roundSeqNum;
+    
+    /*
+     * The sequence number which ends the current loss recovery. The losses of the
+     * packets before it belong to the same congestion event.
+     */
+    private int recoverySeqNum;
+    
+    /*
+     * Whether the sender is in fast recovery.
+     */
+    private boolean isInRecovery;
+    
+    /*
+     * The time when the current fast recovery started.
+     */
+    private long recoveryStart;
+    
+    /*
+     * The number of duplicate ACKs since the base last moved.
+     */
+    private int dupAcks;
+    
+    /*
+     * The number of packets which have left the network according to the duplicate
+     * ACKs in Go-Back-N mode, but are not acknowledged yet.
+     */
+    private int dupAckPkts;
+    
+    /*
+     * The DUP_THRESH highest sequence numbers which have been acknowledged, highest
+     * first, or -1.
+     */
+    private int[] highestAcked = new int[DUP_THRESH];
+    
+    /*
+     * The sequence number before which the packets have been checked for losses
+     * on the scoreboard.
+     */
+    private int lossSeqNum;
+    
+    /*
+     * The sequence number from which the lost packets are searched for to be
+     * retransmitted. No packet before it is considered lost.
+     */
+    private int retransmitSeqNum;
+    
+    /*
+     * The starts of the SACK blocks of the last ACK, as far as they have been
+     * marked on the scoreboard.
+     */
+    private int[] sackedStarts = new int[AckFrame.MAX_SACK_BLOCKS];
+    
+    /*
+     * The ends of the SACK blocks of the last ACK, as far as they have been
+     * marked on the scoreboard.
+     */
+    private int[] sackedEnds = new int[AckFrame.MAX_SACK_BLOCKS];
+    
+    /*
+     * The number of SACK blocks of the last ACK.
+     */
+    private int sackedNum;
+    
+    /*
+     * The time when each packet was last sent.
+     */
+    private long[] sendTimes;
+    
+    /*
+     * The timestamp of the last retransmission of each packet, or 0 if it has not
+     * been retransmitted, from which a retransmission is found to be spurious.
+     */
+    private int[] retransmitTimes;
+    
+    /*
+     * This array records whether each packet has been acknowledged.
+     */
+    private boolean[] isAcked;
+    
+    /*
+     * This array records whether each packet is considered lost and waits to be
+     * retransmitted in Selective Repeat mode.
      */
-    private boolean isRetransmitted;
+    private boolean[] isLost;
+    
+    /*
+     * The retransmission timer of each packet in Selective Repeat mode, which is
+     * numbered by the slot of the packet.
+     */
+    private TimerWheel timers;
+    
+    /*
+     * The number of packets which are considered lost.
+     */
+    private int lostCount;
+    
+    /*
+     * Whether the oldest packet has timed out in Selective Repeat mode, so that it
+     * is retransmitted at once, whatever the congestion window.
+     */
+    private boolean isBaseTimedOut;
+    
+    /*
+     * The time when the Go-Back-N timer of the oldest unacknowledged packet expires.
+     */
+    private long timerDeadline = Long.MAX_VALUE;
       
     /*
-     * The timeout after which the sender will retransmit the packet.
+     * The timeout in microseconds after which the sender will retransmit the packet,
+     * without the backoff.
      */
-    private int timeout;
+    private double timeout = 1000000;
     
     /*
-     * The start time of a transmission.
+     * The factor by which the timeout is multiplied after the oldest packet timed out.
      */
-    private long startTime;
+    private int backoff = 1;
     
     /*
-     * The end time of a transmission.
+     * The last sample RTT in microseconds.
      */
-    private long endTime;
+    private long sampleRTT;
     
     /*
-     * The sample RTT. Here we use the default value 1000 milliseconds.
+     * The estimated RTT in microseconds, which is computed from sample RTT and
+     * current estimated RTT.
      */
-    private int sampleRTT;
+    private double estimatedRTT;
     
     /*
-     * The estimated RTT which is computed from sample RTT and current estimated RTT.
+     * The RTT deviation in microseconds.
      */
-    private int estimatedRTT;
+    private double devRTT;
     
     /*
-     * The RTT deviation.
+     * Whether an RTT sample has been taken, before which the timeout is 1 second.
      */
-    private int devRTT;
+    private boolean isRttMeasured;
     
     /*
-     * The UDP socket which is used to send packets to the receiver (proxy).
+     * The time in nanoseconds from which the next packet may be sent, so that the
+     * packets are spaced at the pacing rate of the congestion controller.
      */
-    private DatagramSocket sendSocket;
+    private long nextSendTime;
+    
+    /*
+     * The UDP channel which is used to send packets to the receiver (proxy).
+     */
+    private DatagramChannel sendChannel;
     
     /*
      * The TCP socket which is used to listen to calls from the receiver.
      */
-    private ServerSocket listeningSocket;
+    private ServerSocketChannel listeningSocket;
+    
+    /*
+     * The TCP connection over which the receiver sends all its ACKs.
+     */
+    private SocketChannel ackChannel;
+    
+    /*
+     * The selector which waits for the call and ACKs from the receiver.
+     */
+    private Selector selector;
+    
+    /*
+     * The port of the TCP socket from which the ACKs are received.
+     */
+    private int ackSrcPort;
+    
+    /*
+     * The buffer of bytes received from the ACK connection.
+     */
+    private ByteBuffer ackBuff = ByteBuffer.allocate(64 * AckFrame.SIZE);
+    
+    /*
+     * The ACK frame received from the receiver.
+     */
+    private AckFrame ack = new AckFrame();
+    
+    /*
+     * The channel of the given file.
+     */
+    private FileChannel fileChannel;
+    
+    /*
+     * The length of the given file.
+     */
+    private long fileLength;
     
     /*
-     * The TCP socket which is used to receive the ACK packet from the receiver.
+     * The number of packets of the given file.
      */
-    private Socket receiveSocket;
+    private int pktNum;
     
     /*
-     * The ACK packet received from the receiver.
+     * The mapped region of the given file, from which the packets are built.
      */
-    private String ack;
+    private MappedByteBuffer fileMap;
     
     /*
-     * The byte array of the given file.
+     * The sequence number of the first packet in the mapped region.
      */
-    private byte[] fileByteArray;
+    private int mapStart;
     
     /*
-     * A sequence of packets generated from the byte array.
+     * The direct buffer in which each packet is built before it is sent. Only one
+     * packet is built at a time, so the buffer is reused for all of them.
      */
-    private ArrayList<byte[]> pkts = new ArrayList<byte[]>();
+    private ByteBuffer pktBuff;
+    
+    /*
+     * The mask which maps a sequence number to its slot in the per-packet arrays.
+     * The arrays only hold the packets in the window, so their size does not
+     * depend on the size of the file.
+     */
+    private int ringMask;
 	
     public static void main(String[] args) {
     	new Sender(args);
@@ -172,239 +609,1169 @@ public class Sender {
         	this.destPort = Short.parseShort(args[2]);
         	this.ackPort = Short.parseShort(args[3]);
         	this.logFileName = args[4];
-        	this.windowSize = (args.length == 6) ? Short.parseShort(args[5]) : 1;
-        	this.sendSocket = new DatagramSocket();
-        	this.srcIp = this.sendSocket.getLocalAddress().toString();
-        	this.srcPort = (short)this.sendSocket.getLocalPort();
-            this.listeningSocket = new ServerSocket(ackPort);
-            this.timeout = 1000;
-            this.sampleRTT = 1000;
-            this.estimatedRTT = 1000;
+        	this.windowSize = (args.length >= 6) ? Math.max(Integer.parseInt(args[5]), 1) : 1;
+        	
+        	while ((this.windowSize >> this.windowScale) > 0xFFFF) {
+        		this.windowScale++;
+        	}
+        	
+        	this.isSelectiveRepeat = (args.length >= 7 && args[6].equals("sr"));
+        	this.controllerName = (args.length >= 8) ? args[7] : "reno";
+        	this.controller = newController(this.controllerName);
+        	
+        	if (args.length >= 9 && args[8].equals("crc32c")) {
+        		this.checksumType = PacketChecksum.CRC32C;
+        		this.packetChecksum = new PacketChecksum();
+        	}
+        	
+        	if (args.length >= 10) {
+        		this.maxMss = Math.min(Math.max(Integer.parseInt(args[9]), BASE_MSS), 65507 - HEADER_LENGTH);
+        	}
+        	
+        	if (args.length >= 11 && !args[10].equals("none")) {
+        		setFec(args[10]);
+        	}
+        	
+        	this.stats = new TransferStats((args.length >= 12) ? args[11] : null, SAMPLE_COLUMNS);
+        	this.lastSampleTime = System.currentTimeMillis();
+        	
+        	this.pktBuff = ByteBuffer.allocateDirect(HEADER_LENGTH + this.maxMss);
+        	
+        	this.sendChannel = DatagramChannel.open();
+        	this.sendChannel.socket().bind(null);
+        	this.srcIp = this.sendChannel.socket().getLocalAddress().toString();
+        	this.srcPort = (short)this.sendChannel.socket().getLocalPort();
+            this.listeningSocket = ServerSocketChannel.open();
+            this.listeningSocket.socket().bind(new InetSocketAddress(this.ackPort));
+            this.listeningSocket.configureBlocking(false);
+            this.selector = Selector.open();
+            this.listeningSocket.register(this.selector, SelectionKey.OP_ACCEPT);
 
-            File logFile = new File(this.logFileName);
             PrintWriter logWriter = null;
 
             if (this.logFileName.equals("stdout")) {
             	logWriter = new PrintWriter(System.out, true);
             }
             else {
-            	logWriter = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)), true);
+            	this.trace = PacketTrace.open(this.logFileName, PacketTrace.SENDER, this.srcIp, this.destIp);
             }
             
-            //Generates a sequence of TCP-like packets from a given file. It first
-            //generates a byte array of the given file, then converts it to a sequence of
-            //packets with size (20 + MSS), and finally set the header fields.
-            toFileByteArray();
-            toPkts();
-            setHeader();
-
-            for (int i = 0; i < this.pkts.size(); i++) {
-            	InetAddress address = InetAddress.getByName(this.destIp);
-                DatagramPacket pkt = new DatagramPacket(this.pkts.get(i), 20 + MSS, address, this.destPort);
-                getHeaderInfo(this.pkts.get(i));
-                
-                //Send a packet to the receiver.
-                this.sendSocket.send(pkt);
-                this.startTime = System.currentTimeMillis();
-                totalBytesSent += 20 + MSS;
-                totalPktsSent++;
-                toLogFile(logWriter);
-
-                this.listeningSocket.setSoTimeout(timeout);
-                
-                try {
-                	//Wait for ACK from the receiver.
-                	this.receiveSocket = this.listeningSocket.accept();
-                	//The socket will only be blocked for the receiver for a given timeout.
-                	this.receiveSocket.setSoTimeout(timeout);
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(receiveSocket.getInputStream()));
-                    this.ack = reader.readLine().trim();
-                } catch (Exception e) {
-                	//If a timeout dose occur, retransmit the packet.
-                    i--;
-                    this.totalPktsRetransmitted++;
-                    this.isRetransmitted = true;
-                    continue;
-                }                
-                
-                if (this.ack.contains("ACK Number " + this.ackNum)) {
-                    //If the packet has not been retransmitted, calculate the timeout.
-                    if (!this.isRetransmitted) {
-                    	this.endTime = System.currentTimeMillis();
-                        getTimeout();
-                    }
+            this.address = new InetSocketAddress(InetAddress.getByName(this.destIp), this.destPort);
+            
+            //Open the given file, whose length the SYNs give to the receiver.
+            openFile();
+            
+            //Agree on the MSS with the receiver before any data is sent.
+            negotiateMss(logWriter);
+            
+            //Split the file into packets, and resume after the part of it which the
+            //receiver holds. Each TCP-like packet is built from the mapped file when
+            //it is sent, so the whole file is never held in memory.
+            splitFile();
+            
+            int slots = Integer.highestOneBit(Math.max(this.windowSize, 1) * 2 - 1);
+            
+            this.ringMask = slots - 1;
+            this.sendTimes = new long[slots];
+            this.retransmitTimes = new int[slots];
+            this.isAcked = new boolean[slots];
+            this.isLost = new boolean[slots];
+            Arrays.fill(this.highestAcked, -1);
+            this.timers = new TimerWheel(slots, 1, System.currentTimeMillis());
 
-                    this.isRetransmitted = false;
-                    toLogFile(logWriter, 1);
-                    System.out.println("Packet " + i + " has been delivered successfully");
-                }
-                else {
-                	i--;
-                    this.totalPktsRetransmitted++;
-                    this.isRetransmitted = true;
-                }
-                
-                this.receiveSocket.close();
+            while (this.base < this.pktNum) {
+            	//Retransmit the lost packets first, as the congestion window and the pacing allow.
+            	//The search goes on from where it last stopped.
+            	int i = Math.max(this.retransmitSeqNum, this.base);
+            	
+            	for (; this.lostCount > 0 && i < this.nextSeqNum &&
+            			(getPipe() < this.controller.getWindow() || this.isBaseTimedOut) && isPacingReady(); i++) {
+            		if (this.isLost[i & this.ringMask]) {
+            			retransmitLost(i, logWriter);
+            			this.isBaseTimedOut = false;
+            		}
+            	}
+            	
+            	this.retransmitSeqNum = i;
+            	
+            	//Send packets as long as neither the window, the receiver window nor the
+            	//congestion window is full, and the pacing lets them go.
+            	while (this.nextSeqNum < this.pktNum && this.nextSeqNum < this.base + this.windowSize &&
+            			this.nextSeqNum < this.rwndEdge && getPipe() < this.controller.getWindow() && isPacingReady()) {
+            		//After a Go-Back-N timeout, a packet may be acknowledged before it is sent again.
+            		if (!this.isAcked[this.nextSeqNum & this.ringMask]) {
+            			sendPkt(this.nextSeqNum, logWriter);
+            			this.inFlight++;
+            			
+            			//The parity packets of a block follow its last packet the first
+            			//time it is sent.
+            			if (this.fecK > 0 && this.nextSeqNum >= this.sentSeqNum &&
+            					((this.nextSeqNum + 1) % this.fecK == 0 || this.nextSeqNum == this.pktNum - 1)) {
+            				sendParity(this.nextSeqNum - this.nextSeqNum % this.fecK, logWriter);
+            			}
+            		}
+            		
+            		if (this.base == this.nextSeqNum) {
+            			this.timerDeadline = this.sendTimes[this.base & this.ringMask] + getRto();
+            		}
+            		
+            		this.nextSeqNum++;
+            		this.sentSeqNum = Math.max(this.sentSeqNum, this.nextSeqNum);
+            	}
+            	
+            	this.maxPipe = Math.max(this.maxPipe, getPipe());
+            	
+            	//Wait for ACKs until the earliest retransmission timer expires, or until
+            	//the pacing lets the next packet go.
+            	long wait = getNextDeadline() - System.currentTimeMillis();
+            	long pacingWait = isPaced() ? this.nextSendTime - System.nanoTime() : Long.MAX_VALUE;
+            	
+            	if (pacingWait < PARK_THRESHOLD) {
+            		this.selector.selectNow();
+            		waitToSend();
+            	}
+            	else if (Math.min(wait, pacingWait / 1000000) > 0) {
+            		this.selector.select(Math.min(wait, pacingWait / 1000000));
+            	}
+            	else {
+            		this.selector.selectNow();
+            	}
+            	
+            	receiveAcks(logWriter);
+            	
+            	//If a timeout does occur, find the packets to retransmit.
+            	retransmitExpired();
+            	
+            	if (this.stats.isExported() && System.currentTimeMillis() >= this.nextSampleTime) {
+            		addSample();
+            	}
+            }
+            
+            if (this.ackChannel != null) {
+            	this.ackChannel.close();
             }
             
             this.listeningSocket.close();
+            this.fileChannel.close();
+            
+            if (this.trace != null) {
+            	this.trace.close();
+            }
             
             //Print the transmission information.
             System.out.println("Delivery completed cuccessfully");
             System.out.println("Total bytes sent = " + this.totalBytesSent);
             System.out.println("Total packets sent = " + this.totalPktsSent);
             System.out.println("Total packets retransmitted = " + this.totalPktsRetransmitted);
+            
+            if (this.fecK > 0) {
+            	System.out.println("Total parity packets sent = " + this.totalParityPktsSent);
+            }
+            
+            printStats();
         }
     	catch (Exception e) {
     		System.out.println("Error! Please try again.");
     		System.exit(1);
         }
     }
-
+    
     /**
-     * This method converts the given file to a byte array.
+     * This method creates the congestion controller with the given name.
      */
-    private void toFileByteArray() throws IOException {
-        File file = new File(this.fileName);
-        long fileLength = file.length();
-        
-        //If the file is too large, throw an exception.
-        if (fileLength > Integer.MAX_VALUE) {
-        	throw new IOException("Error: the file " + file.getName() + " is too large.");
-        }
-        
-        this.fileByteArray = new byte[(int)fileLength];
-        
-        InputStream fileReadStream = new FileInputStream(file);
-        fileReadStream.read(this.fileByteArray);
-        fileReadStream.close();
+    private CongestionController newController(String name) {
+    	if (name.equals("cubic")) {
+    		return new CubicController();
+    	}
+    	else if (name.equals("bbr")) {
+    		return new BbrController();
+    	}
+    	
+    	return new RenoController();
     }
     
     /**
-     * This method converts the byte array to a sequence of packets with size
-     * (20 + MSS), where 20 is the space remained for the header.
+     * This method agrees on the MSS with the receiver, and then probes the path for
+     * the largest packet it carries (packetization layer path MTU discovery, as in
+     * RFC 8899). The first SYN proposes the largest MSS of the sender, and the SYN
+     * ACK gives the largest one which the receiver accepts. The path is then probed
+     * with SYNs padded to the sizes between BASE_MSS, which every path carries, and
+     * that MSS. The sizes are searched in halves, and a probe which is not
+     * acknowledged after MAX_PROBES tries is taken as lost because it is too big.
+     * The MSS is then the same for the whole transfer.
      */
-    private void toPkts() {
-    	//The first 20 bytes of the packet are remained for the header.
-    	byte[] pkt = new byte[20 + MSS];
+    private void negotiateMss(PrintWriter logWriter) throws IOException {
+    	//The first SYN is sent once per second until the receiver answers it, which
+    	//also gives the first RTT sample. Its data is the length of the file.
+    	while (!probe(SYN_DATA_LENGTH, 1000, 1, logWriter)) {
+    	}
+    	
+    	long rtt = Math.max(this.sampleRTT / 1000, 1);
+    	
+    	int high = Math.min(this.maxMss, this.peerMss);
+    	int low = Math.min(BASE_MSS, high);
+    	
+    	while (high - low >= PROBE_STEP) {
+    		int size = (low + high + 1) / 2;
+    		
+    		if (probe(size, Math.max(3 * rtt, 20), MAX_PROBES, logWriter)) {
+    			low = size;
+    		}
+    		else {
+    			high = size - 1;
+    		}
+    	}
+    	
+    	this.mss = low;
+    }
+    
+    /**
+     * This method sends a SYN with size bytes of data up to the given number of
+     * times, and returns whether it is acknowledged within the timeout.
+     */
+    private boolean probe(int size, long timeout, int tries, PrintWriter logWriter) throws IOException {
+    	for (int t = 0; t < tries; t++) {
+    		buildSyn(size);
+    		getHeaderInfo();
+    		this.sendChannel.send(this.pktBuff, this.address);
+    		totalBytesSent += HEADER_LENGTH + size;
+    		totalPktsSent++;
+    		toLogFile(logWriter);
+    		
+    		long deadline = System.currentTimeMillis() + timeout;
+    		long wait = timeout;
+    		
+    		while (wait > 0) {
+    			this.selector.select(wait);
+    			receiveAcks(logWriter);
+    			
+    			if (this.ackedProbeSize == size) {
+    				return true;
+    			}
+    			
+    			wait = deadline - System.currentTimeMillis();
+    		}
+    	}
+    	
+    	return false;
+    }
+    
+    /**
+     * This method handles a SYN ACK from the receiver, whose ACK number is the size
+     * of the data of the SYN which it acknowledges.
+     */
+    private void handleSynAck(PrintWriter logWriter) {
+    	takeRttSample();
+    	toLogFile(logWriter, 1);
+    	this.peerMss = this.ack.mss;
+    	this.ackedProbeSize = this.ack.ackNum;
+    	this.resumeChunks = this.ack.resumeChunks;
+    	this.resumeDigest = this.ack.resumeDigest;
+    }
+    
+    /**
+     * This method sends a packet to the receiver. If the packet has been sent before,
+     * it is counted as retransmitted.
+     */
+    private void sendPkt(int i, PrintWriter logWriter) throws IOException {
+    	buildPkt(i);
+        getHeaderInfo();
         
-        for (int i = 0; i < this.fileByteArray.length; i++) {
-        	if (i != 0 && i % MSS == 0) {
-            	this.pkts.add(pkt);
-            	pkt = new byte[20 + MSS];
-            }
-            
-        	pkt[20 + i % MSS] = this.fileByteArray[i];
+        if (this.sendTimes[i & this.ringMask] != 0) {
+        	this.totalPktsRetransmitted++;
+        	this.retransmitTimes[i & this.ringMask] = this.pktBuff.getInt(32);
+        }
+        
+        this.sendChannel.send(this.pktBuff, this.address);
+        this.sendTimes[i & this.ringMask] = System.currentTimeMillis();
+        pace();
+        
+        //In Selective Repeat mode, each packet has its own timer.
+        if (this.isSelectiveRepeat) {
+        	this.timers.arm(i & this.ringMask, this.sendTimes[i & this.ringMask] + getRto());
         }
-        this.pkts.add(pkt);
+        totalBytesSent += HEADER_LENGTH + this.payloadLength;
+        totalPktsSent++;
+        toLogFile(logWriter);
+    }
+    
+    /**
+     * This method sends the parity packets of a block. They are paced like the data
+     * packets, but are not counted in flight, and are not retransmitted, since a
+     * lost packet which they cannot recover is still retransmitted.
+     */
+    private void sendParity(int block, PrintWriter logWriter) throws IOException {
+    	for (int j = 0; j < this.fecM; j++) {
+    		buildParity(block, j);
+    		getHeaderInfo();
+    		this.sendChannel.send(this.pktBuff, this.address);
+    		pace();
+    		totalBytesSent += HEADER_LENGTH + this.payloadLength;
+    		totalPktsSent++;
+    		this.totalParityPktsSent++;
+    		toLogFile(logWriter);
+    	}
+    }
+    
+    /**
+     * This method sets the time when the next packet may be sent, one packet at the
+     * pacing rate after this one. Before the first RTT sample, there is no pacing.
+     * A packet sent late is allowed to make up for at most one interval, so that
+     * the sender keeps the rate without sending a burst after it has been idle.
+     */
+    private void pace() {
+    	double rate = this.isRttMeasured ? this.controller.getPacingRate((long)(this.estimatedRTT * 1000)) : 0;
+    	
+    	if (rate <= 0) {
+    		this.nextSendTime = 0;
+    		return;
+    	}
+    	
+    	long interval = (long)Math.min(1 / rate, MAX_RTO * 1000000);
+    	long now = System.nanoTime();
+    	
+    	this.nextSendTime = Math.max(this.nextSendTime, now - interval) + interval;
+    }
+    
+    /**
+     * This method returns whether the pacing lets the next packet go.
+     */
+    private boolean isPacingReady() {
+    	return System.nanoTime() >= this.nextSendTime;
+    }
+    
+    /**
+     * This method returns whether a packet is ready to be sent as far as the windows
+     * are concerned, so that the sender has to wait for the pacing instead of an ACK.
+     * The pacing itself is not checked, since its time may come in between, and the
+     * sender would then wait for an ACK which may never come.
+     */
+    private boolean isPaced() {
+    	boolean hasPkt = this.lostCount > 0 ||
+    			(this.nextSeqNum < this.pktNum && this.nextSeqNum < this.base + this.windowSize && this.nextSeqNum < this.rwndEdge);
+    	
+    	return hasPkt && getPipe() < this.controller.getWindow();
+    }
+    
+    /**
+     * This method waits until the next paced packet may be sent. The wait is
+     * shorter than the selector can time, so the thread is parked for most of it
+     * and spins for the end.
+     */
+    private void waitToSend() {
+    	long wait = this.nextSendTime - System.nanoTime();
+    	
+    	if (wait > SPIN_THRESHOLD) {
+    		LockSupport.parkNanos(wait - SPIN_THRESHOLD);
+    	}
+    	
+    	while (!isPacingReady()) {
+    		//Spin until the time of the packet.
+    	}
+    }
+    
+    /**
+     * This method returns the time when the earliest retransmission timer expires.
+     */
+    private long getNextDeadline() {
+    	if (!this.isSelectiveRepeat) {
+    		return this.timerDeadline;
+    	}
+    	
+    	return this.timers.getNextDeadline();
+    }
+    
+    /**
+     * This method accepts the call from the receiver and reads the ACK frames which
+     * have arrived over its connection.
+     */
+    private void receiveAcks(PrintWriter logWriter) throws IOException {
+    	Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+    	
+    	while (it.hasNext()) {
+    		SelectionKey key = it.next();
+    		it.remove();
+    		
+    		if (key.isAcceptable()) {
+    			SocketChannel channel = this.listeningSocket.accept();
+    			
+    			if (channel != null && this.ackChannel == null) {
+    				this.ackChannel = channel;
+    				this.ackChannel.configureBlocking(false);
+    				this.ackChannel.register(this.selector, SelectionKey.OP_READ);
+    				this.ackSrcPort = channel.socket().getPort();
+    			}
+    			else if (channel != null) {
+    				channel.close();
+    			}
+    		}
+    		else if (key.isReadable()) {
+    			if (this.ackChannel.read(this.ackBuff) == -1) {
+    				key.cancel();
+    			}
+    			
+    			//Handle the whole frames, and keep a partial one for the next read.
+    			this.ackBuff.flip();
+    			
+    			while (this.ackBuff.remaining() >= AckFrame.SIZE) {
+    				this.ack.read(this.ackBuff);
+    				
+    				if (this.ack.isSyn()) {
+    					handleSynAck(logWriter);
+    				}
+    				else {
+    					handleAck(logWriter);
+    				}
+    			}
+    			
+    			this.ackBuff.compact();
+    		}
+    	}
+    }
+    
+    /**
+     * This method handles an ACK from the receiver. The ACK number acknowledges all
+     * the packets before it. In Selective Repeat mode, the SACK blocks also mark
+     * the packets received out of order on the scoreboard, so that they are not
+     * retransmitted, and show which packets have been lost. In Go-Back-N mode, they
+     * are ignored, and a loss is shown by DUP_THRESH duplicate ACKs.
+     */
+    private void handleAck(PrintWriter logWriter) throws IOException {
+    	int newest = -1;
+    	int ackedPkts = 0;
+    	
+    	for (int k = this.base; k < Math.min(this.ack.ackNum, this.sentSeqNum); k++) {
+    		if (markAcked(k)) {
+    			newest = k;
+    			ackedPkts++;
+    			
+    			//As in the Eifel detection (RFC 3522), a retransmitted packet whose first
+    			//ACK echoes a timestamp from before the retransmission had been received
+    			//the first time it was sent. A SACK block may echo an older timestamp, so
+    			//only the ACK number is checked.
+    			if (this.retransmitTimes[k & this.ringMask] != 0 && this.ack.timestamp - this.retransmitTimes[k & this.ringMask] < 0) {
+    				this.totalSpuriousRetransmits++;
+    			}
+    		}
+    	}
+    	
+    	//The receiver repeats its SACK blocks in each ACK, so the packets which the
+    	//blocks of the last ACK covered are skipped, and only the newly covered ones
+    	//are marked.
+    	for (int i = 0; this.isSelectiveRepeat && i < this.ack.sackNum; i++) {
+    		int end = Math.min(this.ack.sackEnds[i], this.sentSeqNum);
+    		
+    		for (int k = skipSacked(Math.max(this.ack.sackStarts[i], this.base)); k < end; k = skipSacked(k + 1)) {
+    			if (markAcked(k)) {
+    				newest = Math.max(newest, k);
+    				ackedPkts++;
+    			}
+    		}
+    	}
+    	
+    	this.sackedNum = this.isSelectiveRepeat ? this.ack.sackNum : 0;
+    	
+    	for (int i = 0; i < this.sackedNum; i++) {
+    		this.sackedStarts[i] = Math.max(this.ack.sackStarts[i], this.base);
+    		this.sackedEnds[i] = Math.min(this.ack.sackEnds[i], this.sentSeqNum);
+    	}
+    	
+    	//As in RFC 7323, only an ACK of new data gives an RTT sample, so a window
+    	//update sent when the receiver has caught up does not inflate the RTT.
+    	long rtt = (newest != -1) ? takeRttSample() : -1;
+    	toLogFile(logWriter, 1);
+    	
+    	//The receiver window is counted from the ACK number. A window update is not
+    	//a duplicate ACK.
+    	int oldEdge = this.rwndEdge;
+    	this.rwndEdge = (int)Math.min((long)this.ack.ackNum + this.ack.getWindow(), Integer.MAX_VALUE);
+    	
+    	if (newest != -1) {
+    		//As in Karn's algorithm, the backed-off timeout is kept until an ACK of new
+    		//data gives an RTT sample. The echoed timestamp tells which transmission
+    		//of a packet is acknowledged, so a retransmitted one gives a sample too.
+    		if (rtt >= 0) {
+    			this.backoff = 1;
+    		}
+    		
+    		this.controller.onAck(ackedPkts, (rtt >= 0) ? Math.max(rtt, 1) * 1000 : -1, isCwndLimited(), System.nanoTime());
+    	}
+    	
+    	//Slide the window past the acknowledged packets, and restart the Go-Back-N
+    	//timer for the oldest unacknowledged packet.
+    	int oldBase = this.base;
+    	
+    	while (this.base < this.sentSeqNum && this.isAcked[this.base & this.ringMask]) {
+    		clearSlot(this.base);
+    		this.base++;
+    	}
+    	
+    	this.nextSeqNum = Math.max(this.nextSeqNum, this.base);
+    	
+    	//A round trip ends once the packets sent before it started are acknowledged.
+    	if (this.base > this.roundSeqNum) {
+    		this.lastMaxPipe = this.maxPipe;
+    		this.maxPipe = getPipe();
+    		this.roundSeqNum = this.sentSeqNum;
+    	}
+    	
+    	if (this.base != oldBase) {
+    		this.dupAcks = 0;
+    		this.dupAckPkts = 0;
+    		this.timerDeadline = (this.base < this.nextSeqNum) ? System.currentTimeMillis() + getRto() : Long.MAX_VALUE;
+    		
+    		//A partial ACK in fast recovery shows that the new base has been lost as
+    		//well, unless it has been retransmitted since the recovery started.
+    		if (this.isInRecovery && this.base >= this.recoverySeqNum) {
+    			this.isInRecovery = false;
+    		}
+    		else if (this.isInRecovery && !this.isSelectiveRepeat && this.base < this.nextSeqNum &&
+    				this.sendTimes[this.base & this.ringMask] < this.recoveryStart) {
+    			fastRetransmit(this.base, logWriter);
+    		}
+    	}
+    	else if (this.ack.ackNum == this.base && this.base < this.nextSeqNum && this.rwndEdge == oldEdge) {
+    		//Each duplicate ACK means that a packet after the base has left the network.
+    		this.dupAcks++;
+    		this.dupAckPkts += this.isSelectiveRepeat ? 0 : 1;
+    	}
+    	
+    	if (this.isSelectiveRepeat) {
+    		detectLosses(logWriter);
+    	}
+    	else if (this.dupAcks == DUP_THRESH && this.base >= this.recoverySeqNum) {
+    		enterRecovery();
+    		fastRetransmit(this.base, logWriter);
+    	}
+    }
+    
+    /**
+     * This method returns the first sequence number from the given one which is not
+     * in a SACK block of the last ACK. The packets in those blocks have already
+     * been marked as acknowledged.
+     */
+    private int skipSacked(int k) {
+    	for (int i = 0; i < this.sackedNum; i++) {
+    		if (k >= this.sackedStarts[i] && k < this.sackedEnds[i]) {
+    			k = this.sackedEnds[i];
+    			i = -1;
+    		}
+    	}
+    	
+    	return k;
+    }
+    
+    /**
+     * This method finds the lost packets on the scoreboard in Selective Repeat mode.
+     * As in RFC 6675, a packet is considered lost once DUP_THRESH packets after it
+     * have been acknowledged, i.e. once it is before the DUP_THRESH-th highest
+     * packet acknowledged. Only the packets which have come before it since the
+     * last ACK are checked, so a packet which is not lost then, such as one
+     * retransmitted during the current recovery, is left to its timer. The first
+     * loss of a congestion event starts a fast recovery, and its packet is
+     * retransmitted at once.
+     */
+    private void detectLosses(PrintWriter logWriter) throws IOException {
+    	int lossEdge = this.highestAcked[DUP_THRESH - 1];
+    	int firstLost = -1;
+    	
+    	for (int i = Math.max(this.lossSeqNum, this.base); i < lossEdge; i++) {
+    		if (!this.isAcked[i & this.ringMask] && !this.isLost[i & this.ringMask] &&
+    				!(this.isInRecovery && this.sendTimes[i & this.ringMask] >= this.recoveryStart)) {
+    			markLost(i);
+    			
+    			if (firstLost == -1) {
+    				firstLost = i;
+    			}
+    		}
+    	}
+    	
+    	this.lossSeqNum = Math.max(this.lossSeqNum, lossEdge);
+    	
+    	if (firstLost != -1 && !this.isInRecovery && firstLost >= this.recoverySeqNum) {
+    		enterRecovery();
+    		retransmitLost(firstLost, logWriter);
+    	}
+    }
+    
+    /**
+     * This method starts a fast recovery, which lasts until all the packets sent
+     * before it are acknowledged. The congestion window is only reduced once for
+     * all the losses during the recovery.
+     */
+    private void enterRecovery() {
+    	this.controller.onLoss(System.nanoTime());
+    	this.isInRecovery = true;
+    	this.recoverySeqNum = this.nextSeqNum;
+    	this.recoveryStart = System.currentTimeMillis();
+    }
+    
+    /**
+     * This method retransmits a packet in Go-Back-N mode before its timer expires,
+     * and restarts the timer.
+     */
+    private void fastRetransmit(int i, PrintWriter logWriter) throws IOException {
+    	sendPkt(i, logWriter);
+    	this.timerDeadline = System.currentTimeMillis() + getRto();
+    }
+    
+    /**
+     * This method retransmits a packet which is considered lost in Selective
+     * Repeat mode, so that it is in flight again.
+     */
+    private void retransmitLost(int i, PrintWriter logWriter) throws IOException {
+    	this.isLost[i & this.ringMask] = false;
+    	this.lostCount--;
+    	sendPkt(i, logWriter);
+    	this.inFlight++;
+    }
+    
+    /**
+     * This method returns whether the sender is limited by the congestion window,
+     * i.e. it has had as many packets in the network as the window allows in the
+     * current or the last round trip. Otherwise it is limited by the given file,
+     * the window or the receiver window, and the congestion window is not grown,
+     * since it has not been tested (RFC 7661).
+     */
+    private boolean isCwndLimited() {
+    	return Math.max(this.maxPipe, this.lastMaxPipe) >= this.controller.getWindow();
+    }
+    
+    /**
+     * This method returns the number of packets which are in the network. In
+     * Go-Back-N mode, the packets reported by duplicate ACKs have left it, so
+     * that new packets can be sent during fast recovery.
+     */
+    private int getPipe() {
+    	return this.inFlight - this.dupAckPkts;
+    }
+    
+    /**
+     * This method clears the slot of a packet which has left the window, so that
+     * the slot can be used by a packet which enters it.
+     */
+    private void clearSlot(int k) {
+    	this.sendTimes[k & this.ringMask] = 0;
+    	this.retransmitTimes[k & this.ringMask] = 0;
+    	this.timers.cancel(k & this.ringMask);
+    	this.isAcked[k & this.ringMask] = false;
+    	this.isLost[k & this.ringMask] = false;
+    }
+    
+    /**
+     * This method marks a packet as acknowledged on the scoreboard. It returns false
+     * if the packet had already been acknowledged.
+     */
+    private boolean markAcked(int k) {
+    	if (this.isAcked[k & this.ringMask]) {
+    		return false;
+    	}
+    	
+    	this.isAcked[k & this.ringMask] = true;
+    	this.timers.cancel(k & this.ringMask);
+    	
+    	for (int i = 0, j = k; i < DUP_THRESH; i++) {
+    		if (j > this.highestAcked[i]) {
+    			int higher = j;
+    			
+    			j = this.highestAcked[i];
+    			this.highestAcked[i] = higher;
+    		}
+    	}
+    	
+    	//A packet which is considered lost is no longer in flight.
+    	if (this.isLost[k & this.ringMask]) {
+    		this.isLost[k & this.ringMask] = false;
+    		this.lostCount--;
+    	}
+    	else if (k < this.nextSeqNum) {
+    		this.inFlight--;
+    	}
+    	
+    	System.out.println("Packet " + k + " has been delivered successfully");
+    	return true;
+    }
+    
+    /**
+     * This method handles the packets whose timer has expired. In Go-Back-N mode,
+     * the sender goes back to the oldest unacknowledged packet, and sends the
+     * packets after it again as the congestion window allows. In Selective Repeat
+     * mode, only the packets whose own timer has expired are considered lost, and
+     * are retransmitted as the congestion window allows. If the oldest packet is
+     * one of them, it is retransmitted at once, and the timeout is backed off and
+     * the congestion window reduced as in TCP, but the other packets keep their
+     * timers, since they may still be acknowledged.
+     */
+    private void retransmitExpired() {
+    	long now = System.currentTimeMillis();
+    	boolean isBaseExpired = false;
+    	boolean isNewLoss = false;
+    	
+    	if (!this.isSelectiveRepeat) {
+    		if (this.base < this.nextSeqNum && now >= this.timerDeadline) {
+    			this.nextSeqNum = this.base;
+    			this.inFlight = 0;
+    			isBaseExpired = true;
+    		}
+    	}
+    	else {
+    		//Only the packets whose timer has expired are taken from the timer wheel.
+    		for (int slot = this.timers.poll(now); slot != -1; slot = this.timers.poll(now)) {
+    			int i = this.base + ((slot - this.base) & this.ringMask);
+    			
+    			markLost(i);
+    			
+    			//The expiry of the oldest packet is a timeout. A loss of a packet sent
+    			//after the last congestion event is a new one.
+    			if (i == this.base) {
+    				isBaseExpired = true;
+    				this.isBaseTimedOut = true;
+    			}
+    			else if (i >= this.recoverySeqNum) {
+    				isNewLoss = true;
+    			}
+    		}
+    		
+    		if (isNewLoss && !isBaseExpired) {
+    			enterRecovery();
+    		}
+    	}
+    	
+    	//Double the timeout when the oldest packet times out, since it may be below
+    	//the RTT. It is reset once an ACK of new data gives an RTT sample.
+    	if (isBaseExpired) {
+    		this.controller.onTimeout(System.nanoTime());
+    		this.isInRecovery = false;
+    		this.dupAckPkts = 0;
+    		this.recoverySeqNum = this.sentSeqNum;
+    		this.backoff = Math.min(this.backoff * 2, 64);
+    		this.timerDeadline = now + getRto();
+    	}
+    }
+    
+    /**
+     * This method marks a packet as lost, so that it leaves the packets in flight
+     * until it is retransmitted.
+     */
+    private void markLost(int i) {
+    	this.retransmitSeqNum = Math.min(this.retransmitSeqNum, i);
+    	this.timers.cancel(i & this.ringMask);
+    	this.isLost[i & this.ringMask] = true;
+    	this.lostCount++;
+    	this.inFlight--;
+    }
+    
+    /**
+     * This method returns the retransmission timeout in milliseconds including the
+     * backoff. The timeout is at least MIN_RTO and at most MAX_RTO.
+     */
+    private long getRto() {
+    	long rto = Math.max((long)Math.ceil(this.timeout / 1000), MIN_RTO);
+    	return Math.min(rto * this.backoff, MAX_RTO);
     }
 
     /**
-     * This method sets the header for each packet.
+     * This method opens the given file.
      */
-    private void setHeader() {
-        for (int i = 0; i < this.pkts.size(); i++, this.seqNum++, this.ackNum++) {
-        	//Set the 16-bit source port number field of the header.
-            byte[] byteSrcPort = toByteArray(this.srcPort);
-            System.arraycopy(byteSrcPort, 0, this.pkts.get(i), 0, 2);
-            
-            //Set the 16-bit destination port field of the header.
-            byte[] byteDestPort = toByteArray(this.destPort);
-            System.arraycopy(byteDestPort, 0, this.pkts.get(i), 2, 2);
-            
-            //Set the 32-bit sequence number field of the header.
-            byte[] byteSeqNum = toByteArray(this.seqNum);
-            System.arraycopy(byteSeqNum, 0, this.pkts.get(i), 4, 4);
-            
-            //Set the 32-bit ACK number field of the header.
-            byte[] byteAckNum = toByteArray(this.ackNum);
-            System.arraycopy(byteAckNum, 0, this.pkts.get(i), 8, 4);
-            
-            //Set the 4-bit header length field of the header.
-            //The header length is 20 bytes (= 5 * 32 bits), so the first four bits
-            //of this byte (the 4-bit header length field) is 0101 (= 5), while other
-            //unused bits are 0. Therefore this byte is 01010000 (= 80).
-            this.pkts.get(i)[12] = 80;
-            
-            //Set the 6-bit flag field of the header.
-            //We only used ACK and FIN in this assignment.
-            if (i == this.pkts.size() - 1) {
-            	//FIN = 1.
-            	this.pkts.get(i)[13] = 17;
-            }
-            else {
-            	//FIN = 0.
-            	this.pkts.get(i)[13] = 16;
-            }
-            
-            //Set the 16-bit window size field of the header.
-            byte[] byteWindowSize = toByteArray(this.windowSize);
-            System.arraycopy(byteWindowSize, 0, this.pkts.get(i), 14, 2);
-            
-            //Set the 16-bit checksum field of the header.
-            getChecksum(this.pkts.get(i));
-            byte[] byteChecksum = toByteArray(this.checksum);
-            System.arraycopy(byteChecksum, 0, this.pkts.get(i), 16, 2);
-            
-            //Since the 16-bit urgent data pointer field is not used in this
-            //assignment, we don't need to set it, and use it default value 0.
+    private void openFile() throws IOException {
+    	this.fileChannel = new RandomAccessFile(this.fileName, "r").getChannel();
+    	this.fileLength = this.fileChannel.size();
+    }
+    
+    /**
+     * This method counts the packets of the given file once the MSS is agreed, and
+     * maps the region from which the transfer starts. An empty file is sent as one
+     * packet.
+     */
+    private void splitFile() throws IOException {
+    	long pktNum = Math.max(1, (this.fileLength + this.mss - 1) / this.mss);
+    	
+    	//If the file is too large, throw an exception.
+        if (pktNum > Integer.MAX_VALUE) {
+        	throw new IOException("Error: the file " + this.fileName + " is too large.");
         }
+        
+        this.pktNum = (int)pktNum;
+        this.mapPkts = Math.min(MAP_PKTS, Integer.MAX_VALUE / this.mss);
+        resume();
+        mapFile(this.base);
     }
-
+    
     /**
-     * This method computes the checksum of a packet over the header and data.
+     * This method resumes the transfer after the chunks of the file which the
+     * receiver holds, if their digest is the one of the same chunks of the given
+     * file. Otherwise the file has changed, and is sent from the start. The first
+     * packet is the one which holds the first byte after the chunks, so the bytes
+     * before it in the packet are sent again. The FIN packet is always sent, so
+     * that the receiver finishes the transfer.
      */
-    private void getChecksum(byte[] pkt) {
-    	//compute the checksum of the header.
-    	this.checksum = (short)(this.srcPort + this.destPort + this.windowSize);
+    private void resume() throws IOException {
+    	if (this.resumeChunks <= 0 || this.resumeChunks > this.fileLength / Checkpoint.CHUNK_SIZE ||
+    			Checkpoint.getDigest(this.fileChannel, this.resumeChunks) != this.resumeDigest) {
+    		return;
+    	}
     	
-        //compute the checksum of the data.
-        for (int i = 0; i < pkt.length; i += 2) {
-        	if (i != pkt.length - 1) {
-        		byte[] byteArray = new byte[2];
-        		System.arraycopy(pkt, i, byteArray, 0, 2);
-        		this.checksum += toShort(byteArray);
-        	}
-        	else {
-        		break;
-        	}
+    	long resumedBytes = (long)this.resumeChunks * Checkpoint.CHUNK_SIZE;
+    	
+    	this.startSeqNum = (int)Math.min(resumedBytes / this.mss, this.pktNum - 1);
+    	this.base = this.startSeqNum;
+    	this.nextSeqNum = this.startSeqNum;
+    	this.sentSeqNum = this.startSeqNum;
+    	this.recoverySeqNum = this.startSeqNum;
+    	System.out.println("Delivery resumed at byte " + (long)this.startSeqNum * this.mss);
+    }
+    
+    /**
+     * This method maps the region of the given file which starts at the given
+     * packet. The region holds mapPkts packets, so it only has to move once the
+     * window reaches its end.
+     */
+    private void mapFile(int first) throws IOException {
+    	long position = (long)first * this.mss;
+    	long size = Math.min((long)this.mapPkts * this.mss, this.fileLength - position);
+    	
+    	this.fileMap = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(size, 0));
+    	this.mapStart = first;
+    }
+    
+    /**
+     * This method builds a packet in the packet buffer. The first 36 bytes are the
+     * header, and the others are the data of the packet copied from the mapped file.
+     * The datagram only carries the data, so the last packet is not padded. The
+     * fields of the header are written in place, so nothing is allocated.
+     */
+    private void buildPkt(int i) throws IOException {
+    	//The region is mapped from the base, unless the window is larger than the
+    	//region and the packet is beyond it, in which case it is mapped from the packet.
+    	if (i < this.mapStart || i >= this.mapStart + this.mapPkts) {
+    		mapFile((i >= this.base && i - this.base < this.mapPkts) ? this.base : i);
+    	}
+    	
+    	this.payloadLength = (int)Math.max(0, Math.min(this.mss, this.fileLength - (long)i * this.mss));
+    	
+    	//Copy the data from the mapped file behind the header.
+    	int start = (i - this.mapStart) * this.mss;
+    	this.fileMap.limit(start + this.payloadLength);
+    	this.fileMap.position(start);
+    	this.pktBuff.clear();
+    	this.pktBuff.position(HEADER_LENGTH);
+    	this.pktBuff.put(this.fileMap);
+    	this.pktBuff.flip();
+    	this.fileMap.clear();
+    	
+    	this.seqNum = i;
+    	
+    	//The ACK number field tells the receiver where the transfer has been resumed.
+    	this.ackNum = this.startSeqNum;
+    	
+    	//Set the 6-bit flag field of the header.
+        //Only ACK, FIN and SYN are used in this assignment.
+        if (i == this.pktNum - 1) {
+        	//FIN = 1.
+        	putHeader((byte)17, this.mss);
         }
+        else {
+        	//FIN = 0.
+        	putHeader((byte)16, this.mss);
+        }
+    }
+    
+    /**
+     * This method builds the parity packet of group j of a block in the packet
+     * buffer. Its data is the XOR of the data of the packets of the group, read from
+     * the mapped file, and is as long as the longest of them. Its sequence number is
+     * the first one of the block, and its ACK number field holds the FEC field: the
+     * index of the group (8 bits), the number of data packets in the block (8 bits)
+     * and the XOR of their payload lengths (16 bits). Its flag field has FEC = 1,
+     * and FIN = 1 if the FIN packet is in the block.
+     */
+    private void buildParity(int block, int j) throws IOException {
+    	int end = Math.min(block + this.fecK, this.pktNum);
+    	
+    	if (block < this.mapStart || end > this.mapStart + this.mapPkts) {
+    		mapFile(block);
+    	}
+    	
+    	if (this.fecGroup == null) {
+    		this.fecGroup = new FecGroup(this.mss);
+    	}
+    	
+    	this.fecGroup.reset(block);
+    	int length = 0;
+    	
+    	for (int i = block + j; i < end; i += this.fecM) {
+    		int payloadLength = (int)Math.max(0, Math.min(this.mss, this.fileLength - (long)i * this.mss));
+    		
+    		this.fecGroup.add(this.fileMap, (i - this.mapStart) * this.mss, payloadLength);
+    		this.fecGroup.lengthXor ^= payloadLength;
+    		length = Math.max(length, payloadLength);
+    	}
+    	
+    	this.pktBuff.clear();
+    	this.fecGroup.write(this.pktBuff, HEADER_LENGTH, length);
+    	this.pktBuff.limit(HEADER_LENGTH + length);
+    	this.payloadLength = length;
+    	this.seqNum = block;
+    	this.ackNum = (j << 24) | ((end - block) << 16) | this.fecGroup.lengthXor;
+    	
+    	//FEC = 1, and FIN = 1 if the block holds the FIN packet.
+    	putHeader((byte)((end == this.pktNum) ? 25 : 24), this.mss);
+    }
+    
+    /**
+     * This method sets the forward error correction from an argument "K:M", which
+     * adds M parity packets to each block of K data packets.
+     */
+    private void setFec(String code) {
+    	String[] parts = code.split(":");
+    	
+    	this.fecK = Integer.parseInt(parts[0]);
+    	this.fecM = (parts.length == 2) ? Integer.parseInt(parts[1]) : 0;
+    	
+    	//If the code is not valid, throw an exception.
+    	if (parts.length != 2 || this.fecM < 1 || this.fecM > this.fecK || this.fecK > 255) {
+    		throw new IllegalArgumentException("Error: the FEC code must be K:M with 1 <= M <= K <= 255.");
+    	}
+    }
+    
+    /**
+     * This method builds a SYN packet in the packet buffer, which proposes the
+     * largest MSS of the sender in its MSS field. Its data is size bytes, so that
+     * it also probes whether the path carries a packet of that size: the length of
+     * the file in the first 8 bytes, from which the receiver finds its checkpoint,
+     * and then bytes of 0. Its ACK number field holds the forward error correction,
+     * as K << 8 | M.
+     */
+    private void buildSyn(int size) {
+    	this.pktBuff.clear();
+    	
+    	for (int k = HEADER_LENGTH; k < HEADER_LENGTH + size; k++) {
+    		this.pktBuff.put(k, (byte)0);
+    	}
+    	
+    	if (size >= SYN_DATA_LENGTH) {
+    		this.pktBuff.putLong(HEADER_LENGTH, this.fileLength);
+    	}
+    	
+    	this.pktBuff.limit(HEADER_LENGTH + size);
+    	this.payloadLength = size;
+    	this.seqNum = 0;
+    	this.ackNum = (this.fecK << 8) | this.fecM;
+    	
+    	//SYN = 1.
+    	putHeader((byte)18, this.maxMss);
+    }
+    
+    /**
+     * This method writes the header of the packet in the packet buffer, in front of
+     * its data. The fields of the header are written in place, so nothing is
+     * allocated.
+     */
+    private void putHeader(byte flags, int mss) {
+    	//Set the 16-bit source port number field of the header.
+        this.pktBuff.putShort(0, this.srcPort);
+        
+        //Set the 16-bit destination port field of the header.
+        this.pktBuff.putShort(2, this.destPort);
+        
+        //Set the 32-bit sequence number field of the header.
+        this.pktBuff.putInt(4, this.seqNum);
+        
+        //Set the 32-bit ACK number field of the header.
+        this.pktBuff.putInt(8, this.ackNum);
+        
+        //Set the 4-bit header length field of the header.
+        //The header length is 36 bytes (= 9 * 32 bits), so the first four bits
+        //of this byte (the 4-bit header length field) is 1001 (= 9), while other
+        //unused bits are 0. Therefore this byte is 10010000 (= 144).
+        //The last bit tells the receiver the type of the checksum.
+        this.pktBuff.put(12, (byte)(144 | this.checksumType));
+        
+        //Set the 6-bit flag field of the header.
+        this.pktBuff.put(13, flags);
+        
+        //Set the 16-bit window size field of the header, which is scaled down to fit.
+        this.pktBuff.putShort(14, (short)(this.windowSize >> this.windowScale));
+        
+        //Since the 16-bit urgent data pointer field is not used in this
+        //assignment, it is 0.
+        this.pktBuff.putShort(18, (short)0);
         
-    	this.checksum = (short)(~this.checksum);
+        //Set the 16-bit payload length field, which is counted by the checksum.
+        this.pktBuff.putShort(20, (short)this.payloadLength);
+        
+        //Set the 16-bit ACK port number field, to which the receiver connects.
+        this.pktBuff.putShort(22, this.ackPort);
+        
+        //Set the 32-bit connection ID field, by which the receiver tells the
+        //transfers apart.
+        this.pktBuff.putInt(24, this.connId);
+        
+        //Set the 16-bit MSS field, from which the receiver finds the offset of the
+        //data in the file, and the 8-bit window scale field. The last 8 bits are
+        //not used.
+        this.pktBuff.putShort(28, (short)mss);
+        this.pktBuff.put(30, (byte)this.windowScale);
+        this.pktBuff.put(31, (byte)0);
+        
+        //Set the 32-bit timestamp field, which the receiver echoes in its ACK.
+        this.pktBuff.putInt(32, getTimestamp());
+        
+        //Set the checksum field of the header. The field is 0 while the Internet
+        //checksum is computed. A CRC32C checksum is 32 bits, and also takes the
+        //urgent data pointer field.
+        this.pktBuff.putShort(16, (short)0);
+        
+        if (this.checksumType == PacketChecksum.CRC32C) {
+        	this.checksum = this.packetChecksum.crc32c(this.pktBuff, HEADER_LENGTH + this.payloadLength);
+        	this.pktBuff.putInt(16, this.checksum);
+        }
+        else {
+        	this.checksum = PacketChecksum.internet(this.pktBuff, HEADER_LENGTH + this.payloadLength);
+        	this.pktBuff.putShort(16, (short)this.checksum);
+        }
     }
 
     /**
      * This method obtains information from the header.
      */
-    private void getHeaderInfo(byte[] pkt) {
+    private void getHeaderInfo() {
     	//Get the sequence number of the packet.
-        byte[] seqNum = new byte[4];
-        System.arraycopy(pkt, 4, seqNum, 0, 4);
-        this.seqNum = toInt(seqNum);
+        this.seqNum = this.pktBuff.getInt(4);
         
     	//Get the ACK number of the packet.
-        byte[] ackNum = new byte[4];
-        System.arraycopy(pkt, 8, ackNum, 0, 4);
-        this.ackNum = toInt(ackNum);
+        this.ackNum = this.pktBuff.getInt(8);
         
         //Get the flag field of the packet.
-        this.flags = pkt[13];
+        this.flags = this.pktBuff.get(13);
+    }
+
+    /**
+     * This method returns the timestamp of a packet, which is the time in
+     * microseconds cut to 32 bits. The difference of two timestamps is right for
+     * 35 minutes, which is far more than an RTT.
+     */
+    private int getTimestamp() {
+    	return (int)(System.nanoTime() / 1000);
+    }
+    
+    /**
+     * This method takes an RTT sample from the timestamp echoed by the ACK, and
+     * computes the timeout from it. It returns the sample in microseconds, or -1.
+     */
+    private long takeRttSample() {
+    	long rtt = getTimestamp() - this.ack.timestamp;
+    	
+    	//A sample from a timestamp which has not been sent is ignored.
+    	if (rtt < 0 || rtt > MAX_RTO * 1000) {
+    		return -1;
+    	}
+    	
+    	this.stats.addRtt(rtt);
+    	getTimeout(rtt);
+    	return rtt;
     }
 
     /**
-     * This method computes the timeout using sample RTT, estimated RTT, deviate RTT.
+     * This method computes the timeout using sample RTT, estimated RTT, deviate RTT,
+     * as in RFC 6298. Since every ACK gives a sample, the gains are divided by the
+     * number of ACKs expected in one RTT (RFC 7323, appendix G), so the estimate
+     * moves as much in one RTT as with a single sample per RTT.
      */
-    private void getTimeout() {
-        this.sampleRTT = (int)(this.endTime - this.startTime);
-        this.estimatedRTT = (int)(0.875 * this.estimatedRTT + 0.125 * sampleRTT);
-        this.devRTT = (int)(0.75 * this.devRTT + 0.25 * Math.abs(sampleRTT - estimatedRTT));
-        this.timeout = (int)(this.estimatedRTT + 4 * this.devRTT);
+    private void getTimeout(long rtt) {
+    	this.sampleRTT = rtt;
+    	
+    	if (!this.isRttMeasured) {
+    		this.estimatedRTT = rtt;
+    		this.devRTT = rtt / 2.0;
+    		this.isRttMeasured = true;
+    	}
+    	else {
+    		//The receiver acknowledges every second packet in order.
+    		int samples = Math.max((this.inFlight + 1) / 2, 1);
+    		double alpha = 0.125 / samples;
+    		double beta = 0.25 / samples;
+    		
+    		this.devRTT = (1 - beta) * this.devRTT + beta * Math.abs(this.estimatedRTT - rtt);
+    		this.estimatedRTT = (1 - alpha) * this.estimatedRTT + alpha * rtt;
+    	}
+    	
+    	this.timeout = this.estimatedRTT + Math.max(CLOCK_GRANULARITY, 4 * this.devRTT);
+    }
+
+    /**
+     * This method returns the bytes of the file which the receiver has received in
+     * order since the transfer started or resumed.
+     */
+    private long getBytesDelivered() {
+    	return Math.min((long)this.base * this.mss, this.fileLength) - (long)this.startSeqNum * this.mss;
+    }
+    
+    /**
+     * This method returns a rate in Mbit/s from bytes and a time in milliseconds.
+     */
+    private double getRate(long bytes, long time) {
+    	return (time > 0) ? bytes * 8.0 / time / 1000 : 0;
+    }
+    
+    /**
+     * This method adds a sample of the statistics: the bytes sent and delivered, and
+     * their rates since the last sample, the congestion window and the receiver
+     * window (-1 until the receiver has advertised one), the packets in flight, the
+     * estimated RTT, the timeout, and the retransmissions so far.
+     */
+    private void addSample() {
+    	long now = System.currentTimeMillis();
+    	long bytesDelivered = getBytesDelivered();
+    	long time = now - this.lastSampleTime;
+    	
+    	this.stats.addSample(now, this.totalBytesSent, bytesDelivered,
+    			getRate(this.totalBytesSent - this.sampledBytesSent, time), getRate(bytesDelivered - this.sampledBytesDelivered, time),
+    			this.controller.getWindow(), (this.rwndEdge == Integer.MAX_VALUE) ? -1 : this.rwndEdge - this.base,
+    			getPipe(), Math.round(this.estimatedRTT), getRto(), this.totalPktsRetransmitted, this.totalSpuriousRetransmits);
+    	this.lastSampleTime = now;
+    	this.sampledBytesSent = this.totalBytesSent;
+    	this.sampledBytesDelivered = bytesDelivered;
+    	this.nextSampleTime = this.stats.getNextSampleTime(now);
+    }
+    
+    /**
+     * This method prints the statistics of the transfer, and exports their summary
+     * and the RTT histogram to the statistics file.
+     */
+    private void printStats() {
+    	long time = this.stats.getElapsedTime(System.currentTimeMillis());
+    	long bytesDelivered = getBytesDelivered();
+    	double throughput = getRate(this.totalBytesSent, time);
+    	double goodput = getRate(bytesDelivered, time);
+    	double retransmissionRate = (this.totalPktsSent > 0) ? (double)this.totalPktsRetransmitted / this.totalPktsSent : 0;
+    	double spuriousRate = (this.totalPktsRetransmitted > 0) ? (double)this.totalSpuriousRetransmits / this.totalPktsRetransmitted : 0;
+    	
+    	System.out.println("Total spurious retransmissions = " + this.totalSpuriousRetransmits);
+    	System.out.println("Goodput = " + Math.round(goodput * 1000) / 1000.0 + " Mbit/s, throughput = " +
+    			Math.round(throughput * 1000) / 1000.0 + " Mbit/s");
+    	System.out.println("RTT min/avg/p99 = " + this.stats.getRttMin() / 1000.0 + "/" + this.stats.getRttAvg() / 1000.0 +
+    			"/" + this.stats.getRttPercentile(99) / 1000.0 + " ms");
+    	
+    	this.stats.addSummary(SUMMARY_NAMES, this.isSelectiveRepeat ? "sr" : "gbn", this.controllerName, this.windowSize,
+    			this.mss, (this.fecK > 0) ? this.fecK + ":" + this.fecM : "none", time / 1000.0, this.totalBytesSent,
+    			bytesDelivered, throughput, goodput, this.totalPktsSent, this.totalPktsRetransmitted, retransmissionRate,
+    			this.totalSpuriousRetransmits, spuriousRate, this.totalParityPktsSent, this.stats.getRttCount(),
+    			this.stats.getRttMin(), this.stats.getRttAvg(), this.stats.getRttPercentile(50),
+    			this.stats.getRttPercentile(99), this.stats.getRttMax());
+    	this.stats.close();
     }
 
     /**
      * This method logs the packets transmission to the log file.
      */
     private void toLogFile(PrintWriter logWriter) {
+    	if (this.trace != null) {
+    		this.trace.addPacket(true, this.srcPort, this.destPort, this.seqNum, this.ackNum, this.flags, this.payloadLength,
+    				(this.flags == 18) ? this.maxMss : this.mss, this.connId, (int)Math.round(this.estimatedRTT), this.controller.getWindow());
+    		return;
+    	}
+    	
     	String srcAddr = this.srcIp + ":" + this.srcPort;
         String destAddr = this.destIp + ":" + this.destPort;
         String flags = "";
@@ -412,60 +1779,43 @@ public class Sender {
         if (this.flags == 16) {
         	flags = ", ACK 1, FIN 0, ";
         }
+        else if (this.flags == 18) {
+        	flags = ", ACK 1, FIN 0, SYN 1, MSS " + this.maxMss + ", Length " + this.payloadLength + ", ";
+        }
+        else if ((this.flags & 8) != 0) {
+        	flags = ", ACK 1, FIN " + (this.flags & 1) + ", FEC 1, ";
+        }
         else {
         	flags = ", ACK 1, FIN 1, ";
         }
         
         logWriter.println(new Date() + ": Source " + srcAddr + ", Destination " + destAddr +
         		", Sequence Number " + this.seqNum + ", ACK Number " + this.ackNum +
-        		flags + "Estimated RTT " + this.estimatedRTT + " ms");
+        		flags + "Estimated RTT " + getEstimatedRtt() + " ms");
     }
 
     /**
      * This method logs the received ACK to the log file.
      */
     private void toLogFile(PrintWriter logWriter, int i) {
-    	String srcPort = "" + this.receiveSocket.getPort();
+    	if (this.trace != null) {
+    		this.trace.addAck(false, this.ackSrcPort, this.ackPort, this.ack, this.connId,
+    				(int)Math.round(this.estimatedRTT), this.controller.getWindow());
+    		return;
+    	}
+    	
+    	String srcPort = "" + this.ackSrcPort;
     	String srcAddr = this.destIp + ":" + srcPort;
         String destAddr = this.srcIp + ":" + this.ackPort;
         
         logWriter.println(new Date() + ": Source " + srcAddr + ", Destination " + destAddr +
-        		", " + this.ack + ", Estimated RTT " + this.estimatedRTT + " ms");
-    }
-    
-    /**
-     * This method converts a short number to a byte array.
-     */
-    private byte[] toByteArray(short value) {
-    	ByteBuffer buff = ByteBuffer.allocate(2);
-        buff.order(ByteOrder.BIG_ENDIAN);
-        return buff.putShort(value).array();
-    }
-
-    /**
-     * This method converts an integer to a byte array.
-     */
-    private byte[] toByteArray(int value) {
-    	ByteBuffer buff = ByteBuffer.allocate(4);
-        buff.order(ByteOrder.BIG_ENDIAN);
-        return buff.putInt(value).array();
-    }
-    
-    /**
-     * This method converts a byte array to a short number.
-     */
-    private short toShort(byte[] byteArray) {
-        ByteBuffer buff = ByteBuffer.wrap(byteArray);
-        buff.order(ByteOrder.BIG_ENDIAN);
-        return buff.getShort();
+        		", " + this.ack + ", Estimated RTT " + getEstimatedRtt() + " ms");
     }
     
     /**
-     * This method converts a byte array to an integer.
+     * This method returns the estimated RTT in milliseconds for the log file.
      */
-    private int toInt(byte[] byteArray) {
-        ByteBuffer buff = ByteBuffer.wrap(byteArray);
-        buff.order(ByteOrder.BIG_ENDIAN);
-        return buff.getInt();
+    private double getEstimatedRtt() {
+    	return Math.round(this.estimatedRTT) / 1000.0;
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+
+/**
+ * This class implements the retransmission timers of the packets in the window as
+ * a hashed timer wheel. The time is cut into ticks, and a timer is kept in the list
+ * of the bucket of the tick when it expires, modulo the number of buckets. A timer
+ * which expires more than one turn of the wheel later stays in its bucket until
+ * its turn comes.
+ *
+ * The timers are numbered, and the lists are linked through arrays indexed by the
+ * timer number, so arming, re-arming and cancelling a timer take constant time and
+ * allocate nothing. The time when the wheel has to be polled next is kept as timers
+ * are armed, and only searched again once the timer which set it is cancelled.
+ */
+public class TimerWheel {
+	/*
+     * The number of buckets of the wheel, which is a power of 2.
+     */
+	private static final int BUCKETS = 1024;
+
+	/*
+     * The mark of a timer which is not in a list, or of an empty list.
+     */
+	private static final int NONE = -1;
+
+	/*
+     * The length of a tick in milliseconds.
+     */
+	private final long tick;
+
+	/*
+     * The first timer in the list of each bucket.
+     */
+	private int[] heads = new int[BUCKETS];
+
+	/*
+     * The next timer in the list of each timer.
+     */
+	private int[] next;
+
+	/*
+     * The previous timer in the list of each timer.
+     */
+	private int[] prev;
+
+	/*
+     * The bucket of each timer, or NONE if it is not armed.
+     */
+	private int[] buckets;
+
+	/*
+     * The time when each timer expires.
+     */
+	private long[] deadlines;
+
+	/*
+     * The number of armed timers.
+     */
+	private int size;
+
+	/*
+     * The tick up to which the expired timers have been polled.
+     */
+	private long currentTick;
+
+	/*
+     * The timer of the current bucket from which a poll at the same time goes on
+     * searching, or NONE if the bucket has been searched to its end.
+     */
+	private int cursor = NONE;
+
+	/*
+     * The time of the poll which has set the cursor, or -1.
+     */
+	private long cursorTime = -1;
+
+	/*
+     * The tick of the bucket in which the cursor is.
+     */
+	private long cursorTick = -1;
+
+	/*
+     * The time when the wheel has to be polled next, which is no later than the
+     * earliest deadline.
+     */
+	private long nextDeadline = Long.MAX_VALUE;
+
+	/*
+     * Whether the timer which set nextDeadline has been cancelled, so that it has
+     * to be searched again.
+     */
+	private boolean isNextDeadlineStale;
+
+	/**
+     * This method makes a wheel of the given number of timers, with ticks of the
+     * given length in milliseconds, which starts at the given time.
+     */
+	public TimerWheel(int timers, long tick, long now) {
+		this.tick = tick;
+		this.currentTick = now / tick;
+		this.next = new int[timers];
+		this.prev = new int[timers];
+		this.buckets = new int[timers];
+		this.deadlines = new long[timers];
+
+		for (int i = 0; i < BUCKETS; i++) {
+			this.heads[i] = NONE;
+		}
+
+		for (int i = 0; i < timers; i++) {
+			this.buckets[i] = NONE;
+		}
+	}
+
+	/**
+     * This method arms a timer to expire at the given time. A timer which is
+     * already armed is moved to the new time.
+     */
+	public void arm(int timer, long deadline) {
+		cancel(timer);
+
+		//A timer which has already expired goes into the bucket which is polled next.
+		long tick = Math.max(deadline / this.tick, this.currentTick);
+		int bucket = (int)(tick & (BUCKETS - 1));
+
+		this.deadlines[timer] = deadline;
+		this.buckets[timer] = bucket;
+		this.prev[timer] = NONE;
+		this.next[timer] = this.heads[bucket];
+
+		if (this.heads[bucket] != NONE) {
+			this.prev[this.heads[bucket]] = timer;
+		}
+
+		this.heads[bucket] = timer;
+		this.size++;
+
+		//The timer is before the cursor of its bucket, so the bucket is searched again.
+		if (this.cursorTick != -1 && bucket == (int)(this.cursorTick & (BUCKETS - 1))) {
+			this.cursorTime = -1;
+		}
+
+		this.nextDeadline = Math.min(this.nextDeadline, deadline);
+	}
+
+	/**
+     * This method cancels a timer. Nothing happens if it is not armed.
+     */
+	public void cancel(int timer) {
+		int bucket = this.buckets[timer];
+
+		if (bucket == NONE) {
+			return;
+		}
+
+		if (timer == this.cursor) {
+			this.cursor = this.next[timer];
+		}
+
+		if (this.prev[timer] != NONE) {
+			this.next[this.prev[timer]] = this.next[timer];
+		}
+		else {
+			this.heads[bucket] = this.next[timer];
+		}
+
+		if (this.next[timer] != NONE) {
+			this.prev[this.next[timer]] = this.prev[timer];
+		}
+
+		this.buckets[timer] = NONE;
+		this.size--;
+
+		if (this.deadlines[timer] <= this.nextDeadline) {
+			this.isNextDeadlineStale = true;
+		}
+	}
+
+	/**
+     * This method returns a timer which has expired at the given time and cancels
+     * it, or returns NONE if there is none. It is called until it returns NONE to
+     * get all the expired timers. Each bucket is searched once per tick, and the
+     * buckets of a whole turn at most, however long ago the last poll was. The
+     * polls at the same time go on from where the last one stopped in its bucket,
+     * so draining a bucket does not search the timers of later turns again.
+     */
+	public int poll(long now) {
+		long nowTick = now / this.tick;
+
+		if (nowTick - this.currentTick >= BUCKETS) {
+			this.currentTick = nowTick - BUCKETS + 1;
+		}
+
+		while (this.size > 0) {
+			int bucket = (int)(this.currentTick & (BUCKETS - 1));
+			boolean isResumed = (now == this.cursorTime && this.currentTick == this.cursorTick);
+
+			for (int i = isResumed ? this.cursor : this.heads[bucket]; i != NONE; i = this.next[i]) {
+				if (this.deadlines[i] <= now) {
+					this.cursor = this.next[i];
+					this.cursorTime = now;
+					this.cursorTick = this.currentTick;
+					cancel(i);
+					return i;
+				}
+			}
+
+			if (this.currentTick >= nowTick) {
+				this.cursor = NONE;
+				this.cursorTime = now;
+				this.cursorTick = this.currentTick;
+				break;
+			}
+
+			this.currentTick++;
+		}
+
+		this.currentTick = Math.max(this.currentTick, nowTick);
+
+		//The end of a turn may have passed without any timer expiring.
+		if (this.nextDeadline <= now) {
+			this.isNextDeadlineStale = true;
+		}
+
+		return NONE;
+	}
+
+	/**
+     * This method returns the time when the event loop has to poll the wheel next,
+     * or Long.MAX_VALUE if no timer is armed. It is only searched again once the
+     * timer which set it has been cancelled.
+     */
+	public long getNextDeadline() {
+		if (this.isNextDeadlineStale) {
+			this.nextDeadline = findNextDeadline();
+			this.isNextDeadlineStale = false;
+		}
+
+		return this.nextDeadline;
+	}
+
+	/**
+     * This method searches the time when the wheel has to be polled next. It is the
+     * earliest deadline in the first bucket which holds a timer of the current turn.
+     * If all the timers are in later turns, it is the end of the current turn.
+     */
+	private long findNextDeadline() {
+		if (this.size == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		for (long t = this.currentTick; t < this.currentTick + BUCKETS; t++) {
+			long deadline = Long.MAX_VALUE;
+
+			for (int i = this.heads[(int)(t & (BUCKETS - 1))]; i != NONE; i = this.next[i]) {
+				if (this.deadlines[i] < (t + 1) * this.tick) {
+					deadline = Math.min(deadline, this.deadlines[i]);
+				}
+			}
+
+			if (deadline != Long.MAX_VALUE) {
+				return deadline;
+			}
+		}
+
+		return (this.currentTick + BUCKETS) * this.tick;
+	}
+}
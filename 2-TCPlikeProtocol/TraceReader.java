@@ -0,0 +1,171 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+/**
+ * This class implements the offline tool which renders a trace file of the sender
+ * or the receiver as the text log, one line per packet or ACK, in the same format
+ * as the log which the programs write to stdout. The records which are still in
+ * the ring are rendered from the oldest one, and the number of records which have
+ * been dropped, or are no longer in the ring, is printed to stderr.
+ */
+public class TraceReader {
+	/*
+     * The trace file mapped into memory.
+     */
+	private ByteBuffer trace;
+
+	/*
+     * The role of the program which wrote the trace.
+     */
+	private int role;
+
+	/*
+     * The local address of the program which wrote the trace.
+     */
+	private String localAddr;
+
+	/*
+     * The remote address of the program which wrote the trace.
+     */
+	private String remoteAddr;
+
+	/*
+     * The ACK frame which is rebuilt from a record.
+     */
+	private AckFrame ack = new AckFrame();
+
+	public static void main(String[] args) {
+		new TraceReader(args);
+	}
+
+	public TraceReader(String[] args) {
+		try {
+			FileChannel channel = new RandomAccessFile(args[0], "r").getChannel();
+			this.trace = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			channel.close();
+
+			PrintWriter logWriter = null;
+
+			if (args.length >= 2) {
+				logWriter = new PrintWriter(new BufferedWriter(new FileWriter(args[1])));
+			}
+			else {
+				logWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+			}
+
+			//If the file is not a trace, throw an exception.
+			if (this.trace.limit() < PacketTrace.HEADER_SIZE || this.trace.getInt(0) != PacketTrace.MAGIC ||
+					this.trace.getInt(4) != PacketTrace.RECORD_SIZE) {
+				throw new IOException("Error: " + args[0] + " is not a trace file.");
+			}
+
+			int ringRecords = this.trace.getInt(8);
+			long count = this.trace.getLong(PacketTrace.COUNT_OFFSET);
+			long first = Math.max(count - ringRecords, 0);
+
+			this.role = this.trace.get(PacketTrace.ROLE_OFFSET);
+			this.trace.position(PacketTrace.ROLE_OFFSET + 1);
+			this.localAddr = getString();
+			this.remoteAddr = getString();
+
+			for (long i = first; i < count; i++) {
+				logWriter.println(toLine(PacketTrace.HEADER_SIZE + (int)(i % ringRecords) * PacketTrace.RECORD_SIZE));
+			}
+
+			logWriter.close();
+
+			long dropped = this.trace.getLong(PacketTrace.DROPPED_OFFSET);
+
+			if (first > 0 || dropped > 0) {
+				System.err.println("Records not in the trace = " + (first + dropped));
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+     * This method reads a string of the header, as a 16-bit length and its UTF-8
+     * bytes.
+     */
+	private String getString() {
+		byte[] bytes = new byte[this.trace.getShort()];
+
+		this.trace.get(bytes);
+		return new String(bytes, Charset.forName("UTF-8"));
+	}
+
+	/**
+     * This method renders the record at the given offset as a line of the text log.
+     * The ports of a packet are printed as they are in its header.
+     */
+	private String toLine(int offset) {
+		int kind = this.trace.get(offset + 8);
+		byte flags = this.trace.get(offset + 9);
+		boolean isSent = (kind & PacketTrace.SENT) != 0;
+		String srcIp = isSent ? this.localAddr : this.remoteAddr;
+		String destIp = isSent ? this.remoteAddr : this.localAddr;
+		int lengths = this.trace.getInt(offset + 24);
+		String line = "";
+
+		if ((kind & PacketTrace.ACK_FRAME) != 0) {
+			this.ack.flags = flags;
+			this.ack.sackNum = this.trace.get(offset + 10);
+			this.ack.windowScale = this.trace.get(offset + 11);
+			this.ack.resumeChunks = this.trace.getInt(offset + 16);
+			this.ack.ackNum = this.trace.getInt(offset + 20);
+			this.ack.mss = lengths >>> 16;
+			this.ack.windowSize = (short)lengths;
+
+			for (int i = 0; i < this.ack.sackNum; i++) {
+				this.ack.sackStarts[i] = this.trace.getInt(offset + 40 + i * 8);
+				this.ack.sackEnds[i] = this.trace.getInt(offset + 44 + i * 8);
+			}
+
+			line = ": Source " + srcIp + ":" + (this.trace.getShort(offset + 12) & 0xFFFF) +
+					", Destination " + destIp + ":" + (this.trace.getShort(offset + 14) & 0xFFFF) + ", " + this.ack;
+		}
+		else {
+			line = ": Source " + srcIp + ":" + this.trace.getShort(offset + 12) +
+					", Destination " + destIp + ":" + this.trace.getShort(offset + 14) +
+					", Sequence Number " + this.trace.getInt(offset + 16) +
+					", ACK Number " + this.trace.getInt(offset + 20);
+
+			if (flags == 16) {
+				line += ", ACK 1, FIN 0";
+			}
+			else if (flags == 18) {
+				line += ", ACK 1, FIN 0, SYN 1, MSS " + (lengths >>> 16) + ", Length " + (lengths & 0xFFFF);
+			}
+			else if ((flags & 8) != 0) {
+				line += ", ACK 1, FIN " + (flags & 1) + ", FEC 1";
+			}
+			else {
+				line += ", ACK 1, FIN 1";
+			}
+
+			//A daemon also logs the connection ID, since the packets of many flows are mixed.
+			if (this.role == PacketTrace.DAEMON) {
+				line += ", Connection ID " + (this.trace.getInt(offset + 28) & 0xFFFFFFFFL);
+			}
+		}
+
+		//The sender also logs its estimated RTT.
+		if (this.role == PacketTrace.SENDER) {
+			line += ", Estimated RTT " + this.trace.getInt(offset + 32) / 1000.0 + " ms";
+		}
+
+		return new Date(this.trace.getLong(offset) / 1000) + line;
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * This application realizes a simple TCP-like transport layer protocol. It provides
+ * reliable, in order delivery of a stream of bytes. It can recover from in-network
+ * packet loss, packet corruption, packet duplication and packet reordering and is
+ * able to cope with dynamic network delays.
+ */
+import java.io.*;
+import java.util.Locale;
+
+/**
+ * This class implements the statistics of the transfers of the sender or the
+ * receiver. It keeps a histogram of the RTT samples, and exports a time series,
+ * sampled every SAMPLE_INTERVAL, and a summary of each transfer to a statistics
+ * file, so that runs can be charted and compared.
+ *
+ * A file whose name ends with ".json" is written as JSON Lines, one object per
+ * sample or summary, with a "type" field. Any other file is written as CSV: a
+ * header line and a line per sample, and the summaries and the RTT histogram as
+ * lines which start with "#". Each line is flushed as it is written, so the file
+ * of a running transfer can be followed, and a file which is cut off, e.g. the
+ * one of a daemon, still holds whole lines.
+ *
+ * The RTT histogram has 8 buckets per power of 2 of the RTT in microseconds, so a
+ * percentile is within 1/8 of the RTT, whatever its size.
+ */
+public class TransferStats {
+	/*
+     * The time in milliseconds between two samples of the time series.
+     */
+	public static final long SAMPLE_INTERVAL = 100;
+
+	/*
+     * The number of buckets of the RTT histogram per power of 2.
+     */
+	private static final int SUB_BUCKETS = 8;
+
+	/*
+     * The number of bits of an RTT which select its bucket within a power of 2.
+     */
+	private static final int SUB_BITS = 3;
+
+	/*
+     * The number of buckets of the RTT histogram, which covers every long.
+     */
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	/*
+     * The writer of the statistics file, or null if the statistics are not exported.
+     */
+	private PrintWriter writer;
+
+	/*
+     * Whether the statistics file is written as JSON Lines, or as CSV.
+     */
+	private boolean isJson;
+
+	/*
+     * The names of the columns of a sample, after the time.
+     */
+	private String[] columns;
+
+	/*
+     * The time in milliseconds when the statistics started, from which the times of
+     * the samples are counted.
+     */
+	private long startTime = System.currentTimeMillis();
+
+	/*
+     * The number of RTT samples in each bucket of the histogram.
+     */
+	private long[] rttBuckets = new long[BUCKETS];
+
+	/*
+     * The number of RTT samples.
+     */
+	private long rttCount;
+
+	/*
+     * The sum of the RTT samples in microseconds.
+     */
+	private long rttSum;
+
+	/*
+     * The smallest RTT sample in microseconds.
+     */
+	private long rttMin = Long.MAX_VALUE;
+
+	/*
+     * The largest RTT sample in microseconds.
+     */
+	private long rttMax;
+
+	/**
+     * This constructor opens the statistics file, which is not exported if its name
+     * is null, and writes the header of a CSV file.
+     */
+	public TransferStats(String fileName, String[] columns) throws IOException {
+		this.columns = columns;
+
+		if (fileName == null) {
+			return;
+		}
+
+		this.isJson = fileName.endsWith(".json");
+		this.writer = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+
+		if (!this.isJson) {
+			String header = "t_ms";
+
+			for (int i = 0; i < columns.length; i++) {
+				header += "," + columns[i];
+			}
+
+			writeLine(header);
+		}
+	}
+
+	/**
+     * This method returns the time in milliseconds since the statistics started.
+     */
+	public long getElapsedTime(long now) {
+		return now - this.startTime;
+	}
+
+	/**
+     * This method returns the time in milliseconds when the next sample after the
+     * given time is due.
+     */
+	public long getNextSampleTime(long now) {
+		return now - getElapsedTime(now) % SAMPLE_INTERVAL + SAMPLE_INTERVAL;
+	}
+
+	/**
+     * This method returns whether the statistics are exported, so that samples are
+     * only taken when they are written.
+     */
+	public boolean isExported() {
+		return this.writer != null;
+	}
+
+	/**
+     * This method writes a sample of the time series, whose values follow the
+     * columns.
+     */
+	public void addSample(long now, Object... values) {
+		if (this.writer == null) {
+			return;
+		}
+
+		String line = this.isJson ? "{\"type\":\"sample\",\"t_ms\":" + getElapsedTime(now) : "" + getElapsedTime(now);
+
+		for (int i = 0; i < values.length; i++) {
+			line += this.isJson ? ",\"" + this.columns[i] + "\":" + format(values[i]) : "," + format(values[i]);
+		}
+
+		writeLine(this.isJson ? line + "}" : line);
+	}
+
+	/**
+     * This method writes the summary of a transfer, whose values follow the names.
+     */
+	public void addSummary(String[] names, Object... values) {
+		if (this.writer == null) {
+			return;
+		}
+
+		if (this.isJson) {
+			String line = "{\"type\":\"summary\"";
+
+			for (int i = 0; i < values.length; i++) {
+				line += ",\"" + names[i] + "\":" + format(values[i]);
+			}
+
+			writeLine(line + "}");
+		}
+		else {
+			writeLine("# summary");
+
+			for (int i = 0; i < values.length; i++) {
+				writeLine("# " + names[i] + "," + format(values[i]));
+			}
+		}
+	}
+
+	/**
+     * This method adds an RTT sample in microseconds to the histogram.
+     */
+	public void addRtt(long rtt) {
+		this.rttBuckets[getBucket(rtt)]++;
+		this.rttCount++;
+		this.rttSum += rtt;
+		this.rttMin = Math.min(this.rttMin, rtt);
+		this.rttMax = Math.max(this.rttMax, rtt);
+	}
+
+	/**
+     * This method returns the number of RTT samples.
+     */
+	public long getRttCount() {
+		return this.rttCount;
+	}
+
+	/**
+     * This method returns the smallest RTT sample in microseconds, or 0 if there is
+     * none.
+     */
+	public long getRttMin() {
+		return (this.rttCount == 0) ? 0 : this.rttMin;
+	}
+
+	/**
+     * This method returns the average of the RTT samples in microseconds.
+     */
+	public long getRttAvg() {
+		return (this.rttCount == 0) ? 0 : this.rttSum / this.rttCount;
+	}
+
+	/**
+     * This method returns the largest RTT sample in microseconds.
+     */
+	public long getRttMax() {
+		return this.rttMax;
+	}
+
+	/**
+     * This method returns a percentile of the RTT samples in microseconds, which is
+     * the top of the bucket which holds it, up to the largest sample.
+     */
+	public long getRttPercentile(double percentile) {
+		long rank = (long)Math.ceil(percentile / 100 * this.rttCount);
+		long count = 0;
+
+		for (int i = 0; i < BUCKETS && this.rttCount > 0; i++) {
+			count += this.rttBuckets[i];
+
+			if (count >= Math.max(rank, 1)) {
+				return Math.min(getBucketStart(i + 1) - 1, this.rttMax);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+     * This method returns the bucket of an RTT. The RTTs below SUB_BUCKETS have a
+     * bucket each, and each power of 2 above is split into SUB_BUCKETS buckets.
+     */
+	private static int getBucket(long rtt) {
+		if (rtt < SUB_BUCKETS) {
+			return (int)Math.max(rtt, 0);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(rtt);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int)((rtt >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+     * This method returns the smallest RTT of a bucket.
+     */
+	private static long getBucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+
+		return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	/**
+     * This method writes the RTT histogram, as the smallest RTT and the number of
+     * samples of each bucket which is not empty, and closes the statistics file.
+     */
+	public void close() {
+		if (this.writer == null) {
+			return;
+		}
+
+		if (this.rttCount > 0) {
+			String starts = "";
+			String counts = "";
+
+			if (!this.isJson) {
+				writeLine("# rtt_histogram_us");
+			}
+
+			for (int i = 0; i < BUCKETS; i++) {
+				if (this.rttBuckets[i] == 0) {
+					continue;
+				}
+
+				if (this.isJson) {
+					starts += (starts.isEmpty() ? "" : ",") + getBucketStart(i);
+					counts += (counts.isEmpty() ? "" : ",") + this.rttBuckets[i];
+				}
+				else {
+					writeLine("# " + getBucketStart(i) + "," + this.rttBuckets[i]);
+				}
+			}
+
+			if (this.isJson) {
+				writeLine("{\"type\":\"rtt_histogram\",\"bucket_us\":[" + starts + "],\"count\":[" + counts + "]}");
+			}
+		}
+
+		this.writer.close();
+		this.writer = null;
+	}
+
+	/**
+     * This method writes a line, and flushes it so that the file can be followed.
+     */
+	private void writeLine(String line) {
+		this.writer.println(line);
+		this.writer.flush();
+	}
+
+	/**
+     * This method formats a value, a fraction with 3 decimals, and a string quoted
+     * in JSON.
+     */
+	private String format(Object value) {
+		if (value instanceof Double) {
+			return String.format(Locale.ROOT, "%.3f", value);
+		}
+		else if (value instanceof String && this.isJson) {
+			return "\"" + value + "\"";
+		}
+
+		return "" + value;
+	}
+}